@@ -70,7 +70,7 @@ public class Accidental extends MusicalElement {
      */
     @Override
     public MusicalLength getLength() {
-        return new MusicalLength(0, 1);
+        return MusicalLength.ZERO;
     }
 
     @Override
@@ -82,6 +82,16 @@ public class Accidental extends MusicalElement {
         return sb.toString();
     }
 
+    @Override
+    public int contentHash() {
+        int hash = MusicalType.ACCIDENTAL.ordinal();
+        hash = hash * 31 + pitch.getValue();
+        hash = hash * 31 + pitch.getAccidental();
+        hash = hash * 31 + pitch.getOctave();
+        hash = hash * 31 + value;
+        return (hash == 0) ? 1 : hash;
+    }
+
     @Override
     public MusicalType getMusicalType() {
         return MusicalType.ACCIDENTAL;
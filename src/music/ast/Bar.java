@@ -11,6 +11,7 @@ import music.visitor.MusicVisitor;
  */
 public class Bar extends MusicSequence implements MusicalElementContainer {
     private final List<MusicalElement> elements;
+    private int contentHash; // 0 until computed
 
     /**
      * Construct a new, empty Bar.
@@ -49,6 +50,7 @@ public class Bar extends MusicSequence implements MusicalElementContainer {
      *            The MusicalElement to add
      */
     public void addElement(MusicalElement me) {
+        this.contentHash = 0;
         this.elements.add(me);
 
     }
@@ -62,9 +64,29 @@ public class Bar extends MusicSequence implements MusicalElementContainer {
 
     @Override
     public void add(MusicalElement me) {
+        contentHash = 0;
         elements.add(me);
     }
 
+    /**
+     * A hash of the content of this Bar, which is the same for Bars that are
+     * structurally identical, see {@link Canonicalizer}. It is computed
+     * once, from the hashes of the elements, so the Bar must not change
+     * afterwards.
+     * 
+     * @return the content hash, never 0
+     */
+    public int contentHash() {
+        if (contentHash == 0) {
+            int hash = MusicalType.BAR.ordinal();
+            for (MusicalElement me : elements) {
+                hash = hash * 31 + me.contentHash();
+            }
+            contentHash = (hash == 0) ? 1 : hash;
+        }
+        return contentHash;
+    }
+
     @Override
     public MusicalType getMusicalType() {
         return MusicalType.BAR;
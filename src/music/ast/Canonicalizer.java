@@ -0,0 +1,202 @@
+package music.ast;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares structurally identical Bars and elements, so that a tune that keeps
+ * coming back to the same bars keeps one copy of each. Every node that is the
+ * same as one seen before, by its content, is replaced in its container by
+ * the node seen before.
+ *
+ * Nodes are canonicalized bottom-up, so by the time a container is looked
+ * up, its elements are the canonical ones, and two containers are the same
+ * when they hold the same elements, by identity.
+ *
+ * A canonicalized Music must not be changed afterwards, since a change to a
+ * shared node shows up everywhere it is used; anything that holds on to the
+ * replaced nodes, e.g. an IncrementalParser, no longer sees the Music. The
+ * Music of a CompactMusic cannot be canonicalized, since it cannot be
+ * changed. Not thread-safe.
+ *
+ */
+public class Canonicalizer {
+
+    private final Map<Key, Object> canonical;
+
+    /**
+     * A node in the table, compared by its content.
+     */
+    private static class Key {
+        final Object node;
+        final int hash;
+
+        Key(Object node, int hash) {
+            this.node = node;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && sameContent(node, other.node);
+        }
+    }
+
+    public Canonicalizer() {
+        this.canonical = new HashMap<Key, Object>();
+    }
+
+    /**
+     * @return The number of distinct Bars and elements seen so far
+     */
+    public int size() {
+        return canonical.size();
+    }
+
+    /**
+     * Canonicalize all Bars of all Voices of a Music, in place.
+     *
+     * @return The same Music
+     */
+    public Music canonicalize(Music music) {
+        for (Voice voice : music.getVoices().values()) {
+            List<MusicSequence> elements = voice.getElements();
+            for (int i = 0; i < elements.size(); i++) {
+                MusicSequence ms = elements.get(i);
+                if (ms.getMusicalType() == MusicalType.BAR) {
+                    elements.set(i, canonicalize((Bar) ms));
+                } else if (ms.getMusicalType() == MusicalType.REPEAT) {
+                    Repeat repeat = (Repeat) ms;
+                    canonicalizeAll(repeat.getElements());
+                    for (int n = 1; n <= repeat.getEndingCount(); n++) {
+                        canonicalizeAll(repeat.getEnding(n));
+                    }
+                }
+            }
+        }
+        return music;
+    }
+
+    /**
+     * Canonicalize the elements of a Bar in place, then the Bar itself.
+     *
+     * @return The canonical Bar, which is the given one if it was not seen
+     *         before
+     */
+    public Bar canonicalize(Bar bar) {
+        List<MusicalElement> elements = bar.getElements();
+        for (int i = 0; i < elements.size(); i++) {
+            elements.set(i, canonicalize(elements.get(i)));
+        }
+        return (Bar) lookup(bar, bar.contentHash());
+    }
+
+    /**
+     * Canonicalize the elements of a Chord or Tuplet in place, then the
+     * element itself.
+     *
+     * @return The canonical element, which is the given one if it was not
+     *         seen before
+     */
+    public MusicalElement canonicalize(MusicalElement me) {
+        switch (me.getMusicalType()) {
+        case CHORD:
+            List<Note> notes = ((Chord) me).getNotes();
+            for (int i = 0; i < notes.size(); i++) {
+                notes.set(i, (Note) canonicalize(notes.get(i)));
+            }
+            break;
+        case TUPLET:
+            List<MusicalElement> elements = ((Tuplet) me)
+                    .getMusicalElements();
+            for (int i = 0; i < elements.size(); i++) {
+                elements.set(i, canonicalize(elements.get(i)));
+            }
+            break;
+        default:
+            break;
+        }
+        return (MusicalElement) lookup(me, me.contentHash());
+    }
+
+    private void canonicalizeAll(List<Bar> bars) {
+        for (int i = 0; i < bars.size(); i++) {
+            bars.set(i, canonicalize(bars.get(i)));
+        }
+    }
+
+    private Object lookup(Object node, int hash) {
+        Key key = new Key(node, hash);
+        Object existing = canonical.get(key);
+        if (existing == null) {
+            canonical.put(key, node);
+            return node;
+        }
+        return existing;
+    }
+
+    /**
+     * @return whether two nodes have the same content, where the elements of
+     *         containers are compared by identity
+     */
+    private static boolean sameContent(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.getClass() != b.getClass()) {
+            return false;
+        }
+        if (a instanceof Bar) {
+            return sameElements(((Bar) a).getElements(),
+                    ((Bar) b).getElements());
+        }
+        MusicalElement x = (MusicalElement) a;
+        MusicalElement y = (MusicalElement) b;
+        switch (x.getMusicalType()) {
+        case NOTE:
+            Note n = (Note) x;
+            Note m = (Note) y;
+            return (n.isRest() ? m.isRest() : n.getPitch().equals(m.getPitch()))
+                    && n.getLength().equals(m.getLength());
+        case REST:
+            return x.getLength().equals(y.getLength());
+        case ACCIDENTAL:
+            Accidental c = (Accidental) x;
+            Accidental d = (Accidental) y;
+            return c.getValue() == d.getValue()
+                    && c.getBasePitch().equals(d.getBasePitch());
+        case CHORD:
+            return sameElements(((Chord) x).getNotes(), ((Chord) y).getNotes());
+        case TUPLET:
+            Tuplet s = (Tuplet) x;
+            Tuplet t = (Tuplet) y;
+            return s.getSize() == t.getSize()
+                    && sameElements(s.getMusicalElements(),
+                            t.getMusicalElements());
+        default:
+            return false;
+        }
+    }
+
+    private static boolean sameElements(List<?> a, List<?> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
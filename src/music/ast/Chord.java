@@ -12,6 +12,7 @@ import music.visitor.MusicVisitor;
  */
 public class Chord extends MusicalElement implements MusicalElementContainer {
     private final List<Note> notes;
+    private int contentHash; // 0 until computed
 
     /**
      * Construct a new, empty Chord.
@@ -47,6 +48,7 @@ public class Chord extends MusicalElement implements MusicalElementContainer {
      *            The note to add.
      */
     public void addNote(Note n) {
+        this.contentHash = 0;
         this.notes.add(n);
     }
 
@@ -61,8 +63,7 @@ public class Chord extends MusicalElement implements MusicalElementContainer {
      */
     @Override
     public MusicalLength getLength() {
-        return (notes != null) ? notes.get(0).getLength() : new MusicalLength(
-                0, 1);
+        return (notes != null) ? notes.get(0).getLength() : MusicalLength.ZERO;
     }
 
     /**
@@ -79,9 +80,22 @@ public class Chord extends MusicalElement implements MusicalElementContainer {
             throw new IllegalArgumentException(
                     "ERROR: Can only add Notes to Chord");
         }
+        contentHash = 0;
         notes.add((Note) me);
     }
 
+    @Override
+    public int contentHash() {
+        if (contentHash == 0) {
+            int hash = MusicalType.CHORD.ordinal();
+            for (Note note : notes) {
+                hash = hash * 31 + note.contentHash();
+            }
+            contentHash = (hash == 0) ? 1 : hash;
+        }
+        return contentHash;
+    }
+
     @Override
     public MusicalType getMusicalType() {
         return MusicalType.CHORD;
@@ -0,0 +1,758 @@
+package music.ast;
+
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import sound.Pitch;
+
+/**
+ * A read-only copy of a Music that stores its elements in columns of
+ * primitives, rather than as a tree of objects.
+ *
+ * Every Note, Rest, Accidental, Chord and Tuplet is an element, numbered in
+ * the order of a depth-first walk of the Music, so that the elements of a
+ * Chord or Tuplet directly follow it. Each element has a byte for its kind
+ * and for the value, accidental and octave of its pitch, and an int for the
+ * numerator and denominator of its length and for its parent, the Chord or
+ * Tuplet that it is in. For an Accidental the numerator is its value; for a
+ * Chord or Tuplet, it is the size of the tuplet and the denominator is the
+ * number of elements inside it. The columns live in one ByteBuffer, which
+ * may be direct, i.e. off the heap. Bars, repeats and voices are ranges of
+ * elements, bars and sequences.
+ *
+ * asMusic() gives a view of a CompactMusic that the visitors can run over.
+ *
+ * A CompactMusic can be written to a file with write(), and read back with
+ * read() or map() without lexing or parsing anything. The file holds the
+ * header, the tables and then the columns as they are, in the byte order of
+ * the machine that wrote them, so a mapped CompactMusic reads its columns
+ * straight from the file; only the tables are copied onto the heap. Several
+ * tunes can be written to the same file, one after the other.
+ *
+ */
+public class CompactMusic {
+
+    private static final MusicalType[] TYPES = MusicalType.values();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x41424343; // "ABCC"
+    private static final int VERSION = 1;
+
+    private final Music header; // without voices
+    private final int count; // number of elements
+    private final ByteBuffer columns;
+    private final int[] barStarts; // first element of every bar, and count
+    private final int[] sequenceStarts; // first bar of every sequence
+    private final int[] sequenceEndings; // first ending of every sequence
+    private final int[] endingStarts; // first bar of every ending
+    private final String[] voiceNames;
+    private final int[] voiceStarts; // first sequence of every voice
+
+    // fill pointers, while the columns are written
+    private int element;
+    private int bar;
+    private int sequence;
+    private int ending;
+
+    /**
+     * Copy a Music into a CompactMusic on the heap.
+     *
+     * @see #of(Music, boolean)
+     */
+    public static CompactMusic of(Music music) {
+        return of(music, false);
+    }
+
+    /**
+     * Copy a Music into a CompactMusic.
+     *
+     * @param music
+     *            The Music to copy (not modified)
+     * @param direct
+     *            Whether to keep the columns in a direct ByteBuffer, off the
+     *            heap
+     * @return the CompactMusic
+     * @throws IllegalArgumentException
+     *             if a pitch does not fit into the columns
+     */
+    public static CompactMusic of(Music music, boolean direct) {
+        int elements = 0;
+        int bars = 0;
+        int sequences = 0;
+        int endings = 0;
+        for (Voice voice : music.getVoices().values()) {
+            for (MusicSequence ms : voice.getElements()) {
+                sequences++;
+                if (ms.getMusicalType() == MusicalType.REPEAT) {
+                    endings += ((Repeat) ms).getEndingCount();
+                }
+                for (Bar b : barsOf(ms)) {
+                    bars++;
+                    for (MusicalElement me : b.getElements()) {
+                        elements += countOf(me);
+                    }
+                }
+            }
+        }
+        CompactMusic compact = new CompactMusic(music, elements, bars,
+                sequences, endings, direct);
+        compact.fill(music);
+        return compact;
+    }
+
+    private CompactMusic(Music music, int count, int bars, int sequences,
+            int endings, boolean direct) {
+        this.header = new Music();
+        this.header.copyHeader(music);
+        this.count = count;
+        this.columns = (direct ? ByteBuffer.allocateDirect(count * 16)
+                : ByteBuffer.allocate(count * 16)).order(ByteOrder
+                .nativeOrder());
+        this.barStarts = new int[bars + 1];
+        this.sequenceStarts = new int[sequences + 1];
+        this.sequenceEndings = new int[sequences + 1];
+        this.endingStarts = new int[endings];
+        this.voiceNames = new String[music.getVoices().size()];
+        this.voiceStarts = new int[voiceNames.length + 1];
+    }
+
+    private CompactMusic(Music header, int count, ByteBuffer columns,
+            int[] barStarts, int[] sequenceStarts, int[] sequenceEndings,
+            int[] endingStarts, String[] voiceNames, int[] voiceStarts) {
+        this.header = header;
+        this.count = count;
+        this.columns = columns;
+        this.barStarts = barStarts;
+        this.sequenceStarts = sequenceStarts;
+        this.sequenceEndings = sequenceEndings;
+        this.endingStarts = endingStarts;
+        this.voiceNames = voiceNames;
+        this.voiceStarts = voiceStarts;
+    }
+
+    /**
+     * Write this CompactMusic to a stream, in the format that read() reads.
+     *
+     * @param out
+     *            The stream to write to (not closed)
+     * @throws IOException
+     *             if the stream cannot be written to
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeBoolean(columns.order() == ByteOrder.BIG_ENDIAN);
+        data.writeInt(header.getRawTempo());
+        writeLength(data, header.getMeter());
+        writeLength(data, header.getDefaultLength());
+        writeString(data, header.getKeySignature().toString());
+        writeString(data, header.getIndexNumber());
+        writeString(data, header.getTitle());
+        writeString(data, header.getComposer());
+        data.writeInt(count);
+        writeInts(data, barStarts);
+        writeInts(data, sequenceStarts);
+        writeInts(data, sequenceEndings);
+        writeInts(data, endingStarts);
+        data.writeInt(voiceNames.length);
+        for (String name : voiceNames) {
+            writeString(data, name);
+        }
+        writeInts(data, voiceStarts);
+        data.flush();
+        ByteBuffer all = columns.duplicate();
+        all.clear();
+        Channels.newChannel(out).write(all);
+    }
+
+    /**
+     * Read a CompactMusic that write() wrote, from the position of a buffer,
+     * and move the position past it. The columns are not copied: the
+     * CompactMusic reads them from the buffer, which must not change.
+     *
+     * @param buffer
+     *            The buffer to read from
+     * @return the CompactMusic
+     * @throws IOException
+     *             if the buffer does not hold a CompactMusic at its position
+     */
+    public static CompactMusic read(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a precompiled tune");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unknown version " + version
+                        + " of precompiled tune");
+            }
+            ByteOrder order = (in.get() != 0) ? ByteOrder.BIG_ENDIAN
+                    : ByteOrder.LITTLE_ENDIAN;
+            Music header = new Music();
+            header.setTempo(in.getInt());
+            header.setMeter(readLength(in));
+            header.setDefaultLength(readLength(in));
+            String key = readString(in);
+            header.setKeySignature((key.length() > 0) ? new KeySignature(key)
+                    : new KeySignature());
+            header.setIndexNumber(readString(in));
+            header.setTitle(readString(in));
+            header.setComposer(readString(in));
+            int count = in.getInt();
+            int[] barStarts = readInts(in);
+            int[] sequenceStarts = readInts(in);
+            int[] sequenceEndings = readInts(in);
+            int[] endingStarts = readInts(in);
+            int voices = in.getInt();
+            if (voices < 0 || voices > in.remaining() / 4) {
+                throw new BufferUnderflowException(); // 4 bytes per name
+            }
+            String[] voiceNames = new String[voices];
+            for (int i = 0; i < voiceNames.length; i++) {
+                voiceNames[i] = readString(in);
+            }
+            int[] voiceStarts = readInts(in);
+            if (count < 0 || in.remaining() / 16 < count) {
+                throw new BufferUnderflowException();
+            }
+            ByteBuffer columns = in.slice();
+            columns.limit(count * 16);
+            CompactMusic compact = new CompactMusic(header, count, columns
+                    .order(order), barStarts, sequenceStarts, sequenceEndings,
+                    endingStarts, voiceNames, voiceStarts);
+            compact.check();
+            buffer.position(in.position() + count * 16);
+            return compact;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Precompiled tune is cut short");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Precompiled tune is damaged: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Map a file that write() wrote into memory, and read all of its tunes.
+     * The columns of the tunes are read from the mapping, which stays valid
+     * after the file has been closed.
+     *
+     * @param file
+     *            The name of the file to map
+     * @return the tunes of the file, in order
+     * @throws IOException
+     *             if the file cannot be mapped, or does not hold tunes
+     */
+    public static List<CompactMusic> map(String file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            List<CompactMusic> tunes = new ArrayList<CompactMusic>();
+            while (bytes.hasRemaining()) {
+                tunes.add(read(bytes));
+            }
+            return tunes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Check that the tables and columns of a CompactMusic that was read hold
+     * together, so that asMusic() cannot fail on them: every table starts at
+     * 0, never goes down and ends where the next one begins, and the
+     * elements are nested as fill() writes them.
+     *
+     * @throws IllegalArgumentException
+     *             if they do not
+     */
+    private void check() {
+        checkStarts(barStarts, count, "bar");
+        checkStarts(sequenceStarts, barStarts.length - 1, "sequence");
+        checkStarts(sequenceEndings, endingStarts.length, "ending");
+        checkStarts(voiceStarts, sequenceStarts.length - 1, "voice");
+        if (sequenceEndings.length != sequenceStarts.length
+                || voiceStarts.length != voiceNames.length + 1) {
+            throw new IllegalArgumentException("tables do not match");
+        }
+        for (int s = 0; s + 1 < sequenceStarts.length; s++) {
+            int previous = sequenceStarts[s];
+            for (int e = sequenceEndings[s]; e < sequenceEndings[s + 1]; e++) {
+                if (endingStarts[e] < previous
+                        || endingStarts[e] > sequenceStarts[s + 1]) {
+                    throw new IllegalArgumentException("ending " + e
+                            + " is not in its repeat");
+                }
+                previous = endingStarts[e];
+            }
+        }
+
+        // The Chords and Tuplets that element i is in; the elements inside
+        // one directly follow it
+        int[] open = new int[16];
+        int depth = 0;
+        int b = 0;
+        for (int i = 0; i < count; i++) {
+            while (barStarts[b + 1] <= i) {
+                b++;
+            }
+            while (depth > 0 && i >= end(open[depth - 1])) {
+                depth--;
+            }
+            int parent = (depth > 0) ? open[depth - 1] : -1;
+            int type = columns.get(i);
+            if (type < 0 || type >= TYPES.length) {
+                throw new IllegalArgumentException("element " + i
+                        + " is of no type");
+            }
+            if (getParent(i) != parent) {
+                throw new IllegalArgumentException("element " + i
+                        + " is not in element " + getParent(i));
+            }
+            if (parent >= 0 && getType(parent) == MusicalType.CHORD
+                    && TYPES[type] != MusicalType.NOTE) {
+                throw new IllegalArgumentException("element " + i
+                        + " is in a Chord but not a Note");
+            }
+            switch (TYPES[type]) {
+            case NOTE:
+                getPitch(i);
+                break;
+            case REST:
+                break;
+            case ACCIDENTAL:
+                if (getPitch(i) == null) {
+                    throw new IllegalArgumentException("element " + i
+                            + " is an Accidental without a pitch");
+                }
+                break;
+            case CHORD:
+            case TUPLET:
+                int limit = (parent >= 0) ? end(parent) : barStarts[b + 1];
+                if (getDenom(i) < 0 || getDenom(i) >= limit - i) {
+                    throw new IllegalArgumentException("element " + i
+                            + " runs past what it is in");
+                }
+                if (depth == open.length) {
+                    int[] more = new int[depth * 2];
+                    System.arraycopy(open, 0, more, 0, depth);
+                    open = more;
+                }
+                open[depth++] = i;
+                break;
+            default:
+                throw new IllegalArgumentException("element " + i + " is a "
+                        + TYPES[type]);
+            }
+        }
+    }
+
+    /**
+     * @return the index after the elements inside Chord or Tuplet i
+     */
+    private int end(int i) {
+        return i + 1 + getDenom(i);
+    }
+
+    /**
+     * Check that a table of starts begins at 0, never goes down, and ends at
+     * last.
+     */
+    private static void checkStarts(int[] starts, int last, String what) {
+        if (starts.length == 0 || starts[0] != 0
+                || starts[starts.length - 1] != last) {
+            throw new IllegalArgumentException(what + " table out of range");
+        }
+        for (int i = 1; i < starts.length; i++) {
+            if (starts[i] < starts[i - 1]) {
+                throw new IllegalArgumentException(what + " " + i
+                        + " starts before " + what + " " + (i - 1));
+            }
+        }
+    }
+
+    private static void writeLength(DataOutputStream data, MusicalLength length)
+            throws IOException {
+        data.writeInt(length.getNum());
+        data.writeInt(length.getDenom());
+    }
+
+    private static MusicalLength readLength(ByteBuffer in) {
+        int num = in.getInt();
+        return new MusicalLength(num, in.getInt());
+    }
+
+    private static void writeString(DataOutputStream data, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer bytes = in.slice();
+        bytes.limit(length);
+        in.position(in.position() + length);
+        return UTF8.decode(bytes).toString();
+    }
+
+    private static void writeInts(DataOutputStream data, int[] ints)
+            throws IOException {
+        data.writeInt(ints.length);
+        for (int i : ints) {
+            data.writeInt(i);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / 4) {
+            throw new BufferUnderflowException();
+        }
+        int[] ints = new int[length];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + length * 4);
+        return ints;
+    }
+
+    private void fill(Music music) {
+        int voice = 0;
+        for (Map.Entry<String, Voice> entry : music.getVoices().entrySet()) {
+            voiceNames[voice] = entry.getKey();
+            voiceStarts[voice++] = sequence;
+            for (MusicSequence ms : entry.getValue().getElements()) {
+                sequenceStarts[sequence] = bar;
+                sequenceEndings[sequence++] = ending;
+                if (ms.getMusicalType() == MusicalType.REPEAT) {
+                    Repeat repeat = (Repeat) ms;
+                    write(repeat.getElements());
+                    for (int n = 1; n <= repeat.getEndingCount(); n++) {
+                        endingStarts[ending++] = bar;
+                        write(repeat.getEnding(n));
+                    }
+                } else {
+                    write(Collections.singletonList((Bar) ms));
+                }
+            }
+        }
+        voiceStarts[voice] = sequence;
+        sequenceStarts[sequence] = bar;
+        sequenceEndings[sequence] = ending;
+        barStarts[bar] = element;
+    }
+
+    private void write(List<Bar> bars) {
+        for (Bar b : bars) {
+            barStarts[bar++] = element;
+            for (MusicalElement me : b.getElements()) {
+                write(me, -1);
+            }
+        }
+    }
+
+    /**
+     * Write an element, and the elements inside it, to the columns.
+     */
+    private void write(MusicalElement me, int parent) {
+        int i = element++;
+        MusicalType type = me.getMusicalType();
+        columns.put(i, (byte) type.ordinal());
+        columns.putInt(offset(12, i), parent);
+        switch (type) {
+        case NOTE:
+            Note note = (Note) me;
+            writePitch(i, note.getPitch());
+            writeLength(i, note.getLength().getNum(), note.getLength()
+                    .getDenom());
+            break;
+        case REST:
+            writeLength(i, me.getLength().getNum(), me.getLength().getDenom());
+            break;
+        case ACCIDENTAL:
+            Accidental accidental = (Accidental) me;
+            writePitch(i, accidental.getBasePitch());
+            writeLength(i, accidental.getValue(), 1);
+            break;
+        case CHORD:
+            for (Note n : ((Chord) me).getNotes()) {
+                write(n, i);
+            }
+            writeLength(i, 0, element - i - 1);
+            break;
+        case TUPLET:
+            Tuplet tuplet = (Tuplet) me;
+            for (MusicalElement inner : tuplet.getMusicalElements()) {
+                write(inner, i);
+            }
+            writeLength(i, tuplet.getSize(), element - i - 1);
+            break;
+        default:
+            throw new IllegalArgumentException("Not an element: " + type);
+        }
+    }
+
+    private void writePitch(int i, Pitch pitch) {
+        if (pitch == null) {
+            columns.put(offset(1, i), (byte) -1);
+            return;
+        }
+        if (pitch.getAccidental() != (byte) pitch.getAccidental()
+                || pitch.getOctave() != (byte) pitch.getOctave()) {
+            throw new IllegalArgumentException("Pitch out of range: " + pitch);
+        }
+        columns.put(offset(1, i), (byte) pitch.getValue());
+        columns.put(offset(2, i), (byte) pitch.getAccidental());
+        columns.put(offset(3, i), (byte) pitch.getOctave());
+    }
+
+    private void writeLength(int i, int num, int denom) {
+        columns.putInt(offset(4, i), num);
+        columns.putInt(offset(8, i), denom);
+    }
+
+    /**
+     * @return the position in the columns of element i of the column at the
+     *         given offset per element; bytes come first, then ints
+     */
+    private int offset(int column, int i) {
+        return (column < 4) ? column * count + i : column * count + i * 4;
+    }
+
+    /**
+     * @return the number of elements that an element takes up
+     */
+    private static int countOf(MusicalElement me) {
+        int n = 1;
+        if (me.getMusicalType() == MusicalType.CHORD) {
+            n += ((Chord) me).getNotes().size();
+        } else if (me.getMusicalType() == MusicalType.TUPLET) {
+            for (MusicalElement inner : ((Tuplet) me).getMusicalElements()) {
+                n += countOf(inner);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the bars of a sequence, in the order of the columns
+     */
+    private static List<Bar> barsOf(MusicSequence ms) {
+        if (ms.getMusicalType() == MusicalType.REPEAT) {
+            Repeat repeat = (Repeat) ms;
+            List<Bar> bars = new ArrayList<Bar>(repeat.getElements());
+            for (int n = 1; n <= repeat.getEndingCount(); n++) {
+                bars.addAll(repeat.getEnding(n));
+            }
+            return bars;
+        }
+        return Collections.singletonList((Bar) ms);
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes of the columns of the elements
+     */
+    public int getColumnBytes() {
+        return columns.capacity();
+    }
+
+    public MusicalType getType(int i) {
+        return TYPES[columns.get(i)];
+    }
+
+    /**
+     * @return the index of the Chord or Tuplet that element i is in, or -1
+     */
+    public int getParent(int i) {
+        return columns.getInt(offset(12, i));
+    }
+
+    public int getNum(int i) {
+        return columns.getInt(offset(4, i));
+    }
+
+    public int getDenom(int i) {
+        return columns.getInt(offset(8, i));
+    }
+
+    /**
+     * @return the pitch of a Note or the base pitch of an Accidental
+     */
+    public Pitch getPitch(int i) {
+        int value = columns.get(offset(1, i));
+        if (value < 0) {
+            return null;
+        }
+        return Pitch.valueOf(value, columns.get(offset(2, i)),
+                columns.get(offset(3, i)));
+    }
+
+    /**
+     * @return the number of bars, of all voices and repeats
+     */
+    public int getBarCount() {
+        return barStarts.length - 1;
+    }
+
+    /**
+     * @return the first element of bar b; the bar ends where bar b + 1
+     *         starts
+     */
+    public int getBarStart(int b) {
+        return barStarts[b];
+    }
+
+    /**
+     * @return a Music with the header of this CompactMusic, whose voices build
+     *         their bars from the columns each time that they are asked for.
+     *         The voices cannot be changed.
+     */
+    public Music asMusic() {
+        Music music = new Music();
+        music.copyHeader(header);
+        for (int v = 0; v < voiceNames.length; v++) {
+            music.addVoice(voiceNames[v], new CompactVoice(voiceNames[v], v));
+        }
+        return music;
+    }
+
+    /**
+     * @return element i, built from the columns
+     */
+    private MusicalElement element(int i) {
+        switch (getType(i)) {
+        case NOTE:
+            return new Note(getPitch(i), MusicalLength.valueOf(getNum(i),
+                    getDenom(i)));
+        case REST:
+            return new Rest(MusicalLength.valueOf(getNum(i), getDenom(i)));
+        case ACCIDENTAL:
+            return new Accidental(getPitch(i), getNum(i));
+        case CHORD:
+            Chord chord = new Chord();
+            addElements(chord, i + 1, i + 1 + getDenom(i));
+            return chord;
+        default:
+            Tuplet tuplet = new Tuplet(getNum(i));
+            addElements(tuplet, i + 1, i + 1 + getDenom(i));
+            return tuplet;
+        }
+    }
+
+    /**
+     * Add the elements between start and end, but not those inside them, to
+     * a container.
+     */
+    private void addElements(MusicalElementContainer container, int start,
+            int end) {
+        int i = start;
+        while (i < end) {
+            container.add(element(i));
+            MusicalType type = getType(i);
+            if (type == MusicalType.CHORD || type == MusicalType.TUPLET) {
+                i += getDenom(i); // skip the elements inside
+            }
+            i++;
+        }
+    }
+
+    private Bar bar(int b) {
+        Bar bar = new Bar();
+        addElements(bar, barStarts[b], barStarts[b + 1]);
+        return bar;
+    }
+
+    private MusicSequence sequence(int s) {
+        int b = sequenceStarts[s];
+        int first = sequenceEndings[s];
+        int last = sequenceEndings[s + 1];
+        if (first == last) {
+            return bar(b);
+        }
+        Repeat repeat = new Repeat();
+        for (; b < endingStarts[first]; b++) {
+            repeat.addNormalBar(bar(b));
+        }
+        for (int e = first; e < last; e++) {
+            int end = (e + 1 < last) ? endingStarts[e + 1]
+                    : sequenceStarts[s + 1];
+            for (; b < end; b++) {
+                repeat.addToEnding(e - first + 1, bar(b));
+            }
+        }
+        return repeat;
+    }
+
+    /**
+     * A Voice of a CompactMusic, whose sequences are built on demand.
+     */
+    private class CompactVoice extends Voice {
+        private final int voice;
+
+        CompactVoice(String name, int voice) {
+            super(name);
+            this.voice = voice;
+        }
+
+        @Override
+        public List<MusicSequence> getElements() {
+            return new AbstractList<MusicSequence>() {
+                @Override
+                public MusicSequence get(int index) {
+                    if (index < 0 || index >= size()) {
+                        throw new IndexOutOfBoundsException("Index: " + index);
+                    }
+                    return sequence(voiceStarts[voice] + index);
+                }
+
+                @Override
+                public int size() {
+                    return voiceStarts[voice + 1] - voiceStarts[voice];
+                }
+            };
+        }
+
+        @Override
+        public void add(MusicSequence ms) {
+            throw new UnsupportedOperationException("CompactMusic is read-only");
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Voice[");
+            for (MusicSequence ms : getElements()) {
+                sb.append(ms.toString());
+                sb.append(",");
+            }
+            sb.deleteCharAt(sb.length() - 1);
+            sb.append("]");
+            return sb.toString();
+        }
+    }
+}
@@ -127,7 +127,7 @@ public class KeySignature {
     public Map<Pitch, Accidental> getDefaultAccidentals() {
         Map<Pitch, Accidental> defaultMap = new HashMap<Pitch, Accidental>();
         for (char c : notes) {
-            Pitch p = new Pitch(c);
+            Pitch p = Pitch.valueOf(c);
             defaultMap.put(p, new Accidental(p, shift));
         }
         return defaultMap;
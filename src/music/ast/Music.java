@@ -77,6 +77,13 @@ public class Music {
     	this.composer = composer;
     }
 
+    /**
+     * @return the tempo as given by the Q: field, in default lengths
+     */
+    int getRawTempo() {
+        return tempo;
+    }
+
     public int getTempo() {
         return tempo / defaultLength.getDenom() * 4 * defaultLength.getNum();
     }
@@ -105,6 +112,19 @@ public class Music {
     	return composer;
     }
     
+    /**
+     * Copy the header fields of another Music, but none of its voices.
+     */
+    void copyHeader(Music other) {
+        this.tempo = other.tempo;
+        this.meter = other.meter;
+        this.defaultLength = other.defaultLength;
+        this.keySignature = other.keySignature;
+        this.indexNumber = other.indexNumber;
+        this.title = other.title;
+        this.composer = other.composer;
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Music[");
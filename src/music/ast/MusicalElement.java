@@ -16,4 +16,14 @@ public abstract class MusicalElement {
     
     public abstract MusicalType getMusicalType();
 
+    /**
+     * A hash of the content of this element, which is the same for elements
+     * that are structurally identical, see {@link Canonicalizer}. Containers
+     * compute it once, from the hashes of their elements, so they must not
+     * change afterwards.
+     * 
+     * @return the content hash, never 0
+     */
+    public abstract int contentHash();
+
 }
@@ -1,6 +1,6 @@
 package music.ast;
 
-import music.utils.ExtraMath;
+import music.utils.Rational;
 
 /**
  * Wrapper class to represent a fraction that is a MusicalLength.
@@ -10,6 +10,36 @@ public class MusicalLength {
     private final int num;
     private final int denom;
 
+    /**
+     * Largest numerator and denominator of the shared instances.
+     */
+    private static final int MAX_SHARED = 32;
+    private static final MusicalLength[] SHARED = new MusicalLength[(MAX_SHARED + 1)
+            * MAX_SHARED];
+
+    static {
+        for (int n = 0; n <= MAX_SHARED; n++) {
+            for (int d = 1; d <= MAX_SHARED; d++) {
+                SHARED[n * MAX_SHARED + d - 1] = new MusicalLength(n, d);
+            }
+        }
+    }
+
+    public static final MusicalLength ZERO = valueOf(0, 1);
+    public static final MusicalLength ONE = valueOf(1, 1);
+
+    /**
+     * Return a MusicalLength of num/denom, which is shared when num and
+     * denom are small; unlike the constructor, this does not allocate for
+     * the lengths of ordinary notes.
+     */
+    public static MusicalLength valueOf(int num, int denom) {
+        if (num >= 0 && num <= MAX_SHARED && denom >= 1 && denom <= MAX_SHARED) {
+            return SHARED[num * MAX_SHARED + denom - 1];
+        }
+        return new MusicalLength(num, denom);
+    }
+
     public MusicalLength(int num, int denom) {
         this.num = num;
         this.denom = denom;
@@ -59,21 +89,48 @@ public class MusicalLength {
         return ticksPerQuarterNote * num / denom;
     }
 
+    /**
+     * @return this length times num/denom, not reduced
+     * @throws ArithmeticException
+     *             if the result does not fit into ints
+     */
     public MusicalLength multiply(int num, int denom) {
-        return new MusicalLength(this.num * num, this.denom * denom);
+        return valueOf(multiplyExact(this.num, num),
+                multiplyExact(this.denom, denom));
     }
 
+    /**
+     * @return the sum of this length and other, in lowest terms
+     * @throws ArithmeticException
+     *             if a denominator is 0, or the result does not fit into
+     *             ints
+     */
     public MusicalLength add(MusicalLength other) {
-        int newNumerator = this.num * other.denom + other.num * this.denom;
-        int newDenominator = this.denom * other.denom;
-        int gcf = ExtraMath.gcd(newNumerator, newDenominator);
-        return new MusicalLength(newNumerator / gcf, newDenominator / gcf);
+        long sum = Rational.add(toRational(), other.toRational());
+        return valueOf(Rational.num(sum), Rational.denom(sum));
+    }
+
+    /**
+     * @return this length as a fraction in lowest terms, see
+     *         {@link Rational}
+     * @throws ArithmeticException
+     *             if the denominator is 0
+     */
+    public long toRational() {
+        return Rational.of(num, denom);
     }
 
     public String toString() {
-        int gcf = ExtraMath.gcd(num, denom);
-        return Integer.toString(num / gcf) + "/"
-                + Integer.toString(denom / gcf);
+        long gcf = Rational.gcd(num, denom);
+        return Long.toString(num / gcf) + "/" + Long.toString(denom / gcf);
+    }
+
+    private static int multiplyExact(int a, int b) {
+        long product = (long) a * b;
+        if (product != (int) product) {
+            throw new ArithmeticException("Overflow: " + a + " * " + b);
+        }
+        return (int) product;
     }
 
 }
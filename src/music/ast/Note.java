@@ -9,6 +9,7 @@ import music.visitor.MusicVisitor;
 public class Note extends MusicalElement {
     private final sound.Pitch pitch;
     private final MusicalLength length;
+    private int contentHash; // 0 until computed
 
     public Note(sound.Pitch p, MusicalLength l) {
         this.pitch = p;
@@ -44,6 +45,21 @@ public class Note extends MusicalElement {
         return sb.toString();
     }
 
+    @Override
+    public int contentHash() {
+        if (contentHash == 0) {
+            int hash = MusicalType.NOTE.ordinal();
+            if (pitch != null) {
+                hash = hash * 31 + pitch.getValue();
+                hash = hash * 31 + pitch.getAccidental();
+                hash = hash * 31 + pitch.getOctave();
+            }
+            hash = hash * 31 + length.hashCode();
+            contentHash = (hash == 0) ? 1 : hash;
+        }
+        return contentHash;
+    }
+
 	@Override
 	public MusicalType getMusicalType() {
 		return MusicalType.NOTE;
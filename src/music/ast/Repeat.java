@@ -1,24 +1,40 @@
 package music.ast;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import music.visitor.MusicVisitor;
 
 /**
  * Repeat is a MusicSequence that will be played multiple times. It consists of
- * Bars.
+ * Bars, and any number of endings, at least a first and a second one. The
+ * Bars are played once for every ending, each time followed by that ending,
+ * and at least twice.
  * 
  */
 public class Repeat extends MusicSequence {
     private final List<Bar> bars;
-    private final List<Bar> firstEnding;
-    private final List<Bar> secondEnding;
+    private final List<List<Bar>> endings;
+    private final List<Bar> apparent;
 
     public Repeat() {
         this.bars = new ArrayList<Bar>();
-        this.firstEnding = new ArrayList<Bar>();
-        this.secondEnding = new ArrayList<Bar>();
+        this.endings = new ArrayList<List<Bar>>();
+        this.endings.add(new ArrayList<Bar>());
+        this.endings.add(new ArrayList<Bar>());
+        this.apparent = new AbstractList<Bar>() {
+            @Override
+            public Bar get(int index) {
+                return getApparentBar(index);
+            }
+
+            @Override
+            public int size() {
+                return getApparentSize();
+            }
+        };
     }
 
     public Repeat(List<Bar> e) {
@@ -31,37 +47,94 @@ public class Repeat extends MusicSequence {
     }
 
     public List<Bar> getFirstEnding() {
-        return this.firstEnding;
+        return this.endings.get(0);
     }
 
     public List<Bar> getSecondEnding() {
-        return this.secondEnding;
+        return this.endings.get(1);
+    }
+
+    /**
+     * Get the nth ending, counting from 1.
+     * 
+     * @return A reference to the internal List of Bars of the ending, which
+     *         is empty if there is no such ending.
+     */
+    public List<Bar> getEnding(int n) {
+        return (n <= endings.size()) ? endings.get(n - 1) : Collections
+                .<Bar> emptyList();
+    }
+
+    /**
+     * @return The number of endings, at least 2
+     */
+    public int getEndingCount() {
+        return this.endings.size();
     }
 
     /**
      * Linearize this repeat into Apparent Elements.
      * 
-     * @return A new list of the notes, repeated correctly.
+     * @return A view of the Bars in the order in which they are played. It
+     *         follows changes to this Repeat, and cannot be changed itself.
      */
     public List<Bar> getApparentElments() {
-        List<Bar> apparent = new ArrayList<Bar>();
-        apparent.addAll(bars);
-        apparent.addAll(firstEnding);
-        apparent.addAll(bars);
-        apparent.addAll(secondEnding);
         return apparent;
     }
 
+    /**
+     * @return The number of Bars that are played, see getApparentBar()
+     */
+    public int getApparentSize() {
+        int size = bars.size() * endings.size();
+        for (List<Bar> ending : endings) {
+            size += ending.size();
+        }
+        return size;
+    }
+
+    /**
+     * Get a Bar of this repeat in the order in which they are played, without
+     * copying any lists: index through getApparentSize() to play the Repeat.
+     * 
+     * @return The Bar that is played as the index-th of this Repeat
+     */
+    public Bar getApparentBar(int index) {
+        int i = index;
+        for (List<Bar> ending : endings) {
+            if (i < bars.size()) {
+                return bars.get(i);
+            }
+            i -= bars.size();
+            if (i < ending.size()) {
+                return ending.get(i);
+            }
+            i -= ending.size();
+        }
+        throw new IndexOutOfBoundsException("Index: " + index);
+    }
+
     public void addNormalBar(Bar e) {
         this.bars.add(e);
     }
 
     public void addToFirstEnding(Bar e) {
-        this.firstEnding.add(e);
+        addToEnding(1, e);
     }
 
     public void addToSecondEnding(Bar e) {
-        this.secondEnding.add(e);
+        addToEnding(2, e);
+    }
+
+    /**
+     * Add a Bar to the nth ending, counting from 1, which also makes sure that
+     * there are n endings.
+     */
+    public void addToEnding(int n, Bar e) {
+        while (endings.size() < n) {
+            endings.add(new ArrayList<Bar>());
+        }
+        this.endings.get(n - 1).add(e);
     }
 
     public <R> R accept(MusicVisitor<R> v) {
@@ -82,19 +155,21 @@ public class Repeat extends MusicSequence {
             sb.append(",");
         }
         sb.deleteCharAt(sb.length() - 1);
-        if (firstEnding.size() != 0) {
+        if (getFirstEnding().size() != 0) {
             sb.append("[1 ");
-            for (Bar bar : firstEnding) {
+            for (Bar bar : getFirstEnding()) {
                 sb.append(bar.toString());
                 sb.append(",");
             }
             sb.deleteCharAt(sb.length() - 1);
-            sb.append("] 2[ ");
-            for (Bar bar : secondEnding) {
-                sb.append(bar.toString());
-                sb.append(",");
+            for (int n = 2; n <= endings.size(); n++) {
+                sb.append("] " + n + "[ ");
+                for (Bar bar : getEnding(n)) {
+                    sb.append(bar.toString());
+                    sb.append(",");
+                }
+                sb.deleteCharAt(sb.length() - 1);
             }
-            sb.deleteCharAt(sb.length() - 1);
             sb.append("]");
         }
         sb.append("]");
@@ -33,6 +33,12 @@ public class Rest extends MusicalElement {
         return sb.toString();
     }
 
+    @Override
+    public int contentHash() {
+        int hash = MusicalType.REST.ordinal() * 31 + length.hashCode();
+        return (hash == 0) ? 1 : hash;
+    }
+
     @Override
     public MusicalType getMusicalType() {
         return MusicalType.REST;
@@ -14,6 +14,11 @@ public class Tuplet extends MusicalElement implements MusicalElementContainer {
     List<MusicalElement> musicalElements;
     int size;
     int currentNumNotes;
+    private int contentHash; // 0 until computed
+
+    private static final MusicalLength[] SCALES = { null, null,
+            MusicalLength.valueOf(3, 2), MusicalLength.valueOf(2, 3),
+            MusicalLength.valueOf(3, 4) };
 
     public Tuplet(int size) {
         this.musicalElements = new ArrayList<MusicalElement>();
@@ -38,17 +43,12 @@ public class Tuplet extends MusicalElement implements MusicalElementContainer {
     public MusicalLength getLength() {
         MusicalLength length = (musicalElements != null && musicalElements
                 .size() != 0) ? musicalElements.get(0).getLength()
-                : new MusicalLength(0, 1);
-
-        if (size == 2) {
-            return length.multiply(3, 2);
-        } else if (size == 3) {
-            return length.multiply(2, 3);
-        } else if (size == 4) {
-            return length.multiply(3, 4);
-        } else {
-            return new MusicalLength(0, 1);
+                : MusicalLength.ZERO;
+
+        if ((size < 2) || (size >= SCALES.length)) {
+            return MusicalLength.ZERO;
         }
+        return length.multiply(SCALES[size].getNum(), SCALES[size].getDenom());
     }
 
     /**
@@ -57,13 +57,11 @@ public class Tuplet extends MusicalElement implements MusicalElementContainer {
      * @return Scale of this tuplet
      */
     public MusicalLength getScale() {
-        MusicalLength[] ml = { null, null, new MusicalLength(3, 2),
-                new MusicalLength(2, 3), new MusicalLength(3, 4) };
-        if ((size < 2) || (size >= ml.length)) {
+        if ((size < 2) || (size >= SCALES.length)) {
             // Uhm. Unsupported tuplet. ZERO!
-            return new MusicalLength(0, 1);
+            return MusicalLength.ZERO;
         }
-        return ml[size];
+        return SCALES[size];
     }
 
     public List<MusicalElement> getMusicalElements() {
@@ -77,12 +75,25 @@ public class Tuplet extends MusicalElement implements MusicalElementContainer {
 
     @Override
     public void add(MusicalElement me) {
+        contentHash = 0;
         musicalElements.add(me);
         if (me.getMusicalType() == MusicalType.NOTE) {
             currentNumNotes++;
         }
     }
 
+    @Override
+    public int contentHash() {
+        if (contentHash == 0) {
+            int hash = MusicalType.TUPLET.ordinal() * 31 + size;
+            for (MusicalElement me : musicalElements) {
+                hash = hash * 31 + me.contentHash();
+            }
+            contentHash = (hash == 0) ? 1 : hash;
+        }
+        return contentHash;
+    }
+
     @Override
     public MusicalType getMusicalType() {
         return MusicalType.TUPLET;
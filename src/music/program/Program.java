@@ -0,0 +1,625 @@
+package music.program;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sound.Pitch;
+import sound.SequencePlayer;
+
+import music.ast.Accidental;
+import music.ast.Bar;
+import music.ast.Chord;
+import music.ast.Music;
+import music.ast.MusicSequence;
+import music.ast.MusicalElement;
+import music.ast.MusicalLength;
+import music.ast.Note;
+import music.ast.Repeat;
+import music.ast.Rest;
+import music.ast.Tuplet;
+import music.ast.Voice;
+import music.utils.ExtraMath;
+import music.utils.Rational;
+import music.visitor.MusicVisitor;
+
+/**
+ * A Music compiled into a flat array of instructions, which the passes over
+ * the Music run as a loop over a switch, rather than through accept() and
+ * visit().
+ *
+ * Every instruction is an opcode followed by its operands, which are ints.
+ * Pitches, lengths and voice names are operands by their index into a table,
+ * where equal ones share an index. The elements of a Chord or Tuplet come
+ * between its BEGIN and END. A Repeat is compiled once, with jumps that play
+ * its bars once for every ending: the bars, ENDING 1, its bars and a JUMP
+ * back, the bars again, ENDING 2, and so on up to the last ending, which
+ * falls through to REPEAT_END.
+ *
+ * The passes give the same results as the visitors: see
+ * {@link #getTicksPerQuarterNote()}, {@link #getErrors()} and
+ * {@link #translate(SequencePlayer, int)}. A Program does not follow changes
+ * to the Music that it was compiled from.
+ *
+ */
+public class Program {
+
+    /** VOICE name: the following bars are in the named voice */
+    public static final int VOICE = 0;
+    /** BAR: a Bar begins, and the accidentals of the last one end */
+    public static final int BAR = 1;
+    /** BAR_END: a Bar ends */
+    public static final int BAR_END = 2;
+    /** NOTE pitch length */
+    public static final int NOTE = 3;
+    /** REST length */
+    public static final int REST = 4;
+    /** ACCIDENTAL pitch modified: the pitch is played as the modified one */
+    public static final int ACCIDENTAL = 5;
+    /** CHORD_BEGIN length: the length of its first note */
+    public static final int CHORD_BEGIN = 6;
+    /** CHORD_END */
+    public static final int CHORD_END = 7;
+    /** TUPLET_BEGIN scale length: the scale and length of the Tuplet */
+    public static final int TUPLET_BEGIN = 8;
+    /** TUPLET_END */
+    public static final int TUPLET_END = 9;
+    /** REPEAT: a Repeat begins, on its first pass */
+    public static final int REPEAT = 10;
+    /** ENDING n skip: unless this is pass n, go to the instruction at skip */
+    public static final int ENDING = 11;
+    /** JUMP target: start the next pass at the instruction at target */
+    public static final int JUMP = 12;
+    /** REPEAT_END */
+    public static final int REPEAT_END = 13;
+
+    private static final String[] NAMES = { "VOICE", "BAR", "BAR_END",
+            "NOTE", "REST", "ACCIDENTAL", "CHORD_BEGIN", "CHORD_END",
+            "TUPLET_BEGIN", "TUPLET_END", "REPEAT", "ENDING", "JUMP",
+            "REPEAT_END" };
+    private static final int[] OPERANDS = { 1, 0, 0, 2, 1, 2, 1, 0, 2, 0, 0,
+            2, 1, 0 };
+
+    private final int[] code;
+    private final Pitch[] pitches;
+    private final MusicalLength[] lengths;
+    private final String[] voices;
+    private final int[] keyed; // the pitch that each pitch is in the key
+    private final MusicalLength meter;
+    private final MusicalLength defaultLength;
+
+
+    private Program(int[] code, Pitch[] pitches, MusicalLength[] lengths,
+            String[] voices, int[] keyed, Music music) {
+        this.code = code;
+        this.pitches = pitches;
+        this.lengths = lengths;
+        this.voices = voices;
+        this.keyed = keyed;
+        this.meter = music.getMeter();
+        this.defaultLength = music.getDefaultLength();
+    }
+
+    /**
+     * Compile a Music.
+     *
+     * @throws ArithmeticException
+     *             if the length of a Tuplet does not fit into ints, as the
+     *             OptimalTicksPerQuarterNoteVisitor does
+     */
+    public static Program compile(Music music) {
+        Compiler compiler = new Compiler();
+        music.accept(compiler);
+        // what every pitch is played as in the key, which may add pitches
+        Map<Pitch, Accidental> key = music.getKeySignature()
+                .getDefaultAccidentals();
+        List<Integer> keyed = new ArrayList<Integer>();
+        for (int i = 0; i < compiler.pitches.size(); i++) {
+            Accidental accidental = key.get(compiler.pitches.get(i));
+            keyed.add((accidental != null) ? compiler.pitch(accidental
+                    .getModifiedPitch()) : i);
+        }
+        int[] code = new int[compiler.size];
+        System.arraycopy(compiler.code, 0, code, 0, compiler.size);
+        int[] keyedPitches = new int[keyed.size()];
+        for (int i = 0; i < keyedPitches.length; i++) {
+            keyedPitches[i] = keyed.get(i);
+        }
+        return new Program(code,
+                compiler.pitches.toArray(new Pitch[0]),
+                compiler.lengths.toArray(new MusicalLength[0]),
+                compiler.voices.toArray(new String[0]), keyedPitches, music);
+    }
+
+    /**
+     * @return The number of ints of the instructions
+     */
+    public int size() {
+        return code.length;
+    }
+
+    /**
+     * @return what the OptimalTicksPerQuarterNoteVisitor returns
+     */
+    public int getTicksPerQuarterNote() {
+        // every written Bar once, i.e. without the jumps, and with the LCMs
+        // taken in the same order, in case they overflow
+        int musicLcm = 1;
+        int voiceLcm = 1;
+        int repeatLcm = 1;
+        int barLcm = 1;
+        boolean voice = false;
+        boolean repeat = false;
+        int depth = 0; // in Chords and Tuplets, whose elements do not count
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            switch (op) {
+            case VOICE:
+                if (voice) {
+                    musicLcm = ExtraMath.lcm(musicLcm, voiceLcm);
+                }
+                voice = true;
+                voiceLcm = 1;
+                break;
+            case BAR:
+                barLcm = 1;
+                break;
+            case BAR_END:
+                if (repeat) {
+                    repeatLcm = ExtraMath.lcm(repeatLcm, barLcm);
+                } else {
+                    voiceLcm = ExtraMath.lcm(voiceLcm, barLcm);
+                }
+                break;
+            case NOTE:
+                if (depth == 0) {
+                    barLcm = ExtraMath.lcm(barLcm,
+                            lengths[code[pc + 2]].getDenom());
+                }
+                break;
+            case REST:
+                if (depth == 0) {
+                    barLcm = ExtraMath.lcm(barLcm,
+                            lengths[code[pc + 1]].getDenom());
+                }
+                break;
+            case ACCIDENTAL:
+                if (depth == 0) {
+                    barLcm = ExtraMath.lcm(barLcm, 1);
+                }
+                break;
+            case CHORD_BEGIN:
+                if (depth++ == 0) {
+                    barLcm = ExtraMath.lcm(barLcm,
+                            lengths[code[pc + 1]].getDenom());
+                }
+                break;
+            case TUPLET_BEGIN:
+                if (depth++ == 0) {
+                    barLcm = ExtraMath.lcm(barLcm,
+                            lengths[code[pc + 2]].getDenom());
+                }
+                break;
+            case CHORD_END:
+            case TUPLET_END:
+                depth--;
+                break;
+            case REPEAT:
+                repeat = true;
+                repeatLcm = 1;
+                break;
+            case REPEAT_END:
+                repeat = false;
+                voiceLcm = ExtraMath.lcm(voiceLcm, repeatLcm);
+                break;
+            default:
+                break; // ENDING and JUMP, as every Bar counts once
+            }
+            pc += 1 + OPERANDS[op];
+        }
+        if (voice) {
+            musicLcm = ExtraMath.lcm(musicLcm, voiceLcm);
+        }
+        return ExtraMath.lcm(musicLcm, defaultLength.getDenom());
+    }
+
+    /**
+     * @return the errors that the MusicalWellFormednessVisitor finds
+     */
+    public String getErrors() {
+        // the beats of every length, or why there are none
+        long unit = Rational.ZERO;
+        String invalidUnit = null;
+        try {
+            unit = defaultLength.toRational();
+        } catch (ArithmeticException e) {
+            invalidUnit = e.getMessage();
+        }
+        long[] beats = new long[lengths.length];
+        String[] invalidBeats = new String[lengths.length];
+        for (int i = 0; i < lengths.length && invalidUnit == null; i++) {
+            try {
+                beats[i] = Rational.multiply(lengths[i].toRational(), unit);
+            } catch (ArithmeticException e) {
+                invalidBeats[i] = e.getMessage();
+            }
+        }
+
+        StringBuilder errors = new StringBuilder();
+        String voice = null;
+        int bar = 0;
+        long sum = Rational.ZERO;
+        String invalid = null; // once a length is invalid, the Bar is done
+        int depth = 0;
+        int chord = -1; // the length of the Chord that is checked, if any
+        int pass = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            int next = pc + 1 + OPERANDS[op];
+            int counted = -1; // the length that the instruction adds
+            switch (op) {
+            case VOICE:
+                voice = voices[code[pc + 1]];
+                bar = 0;
+                break;
+            case BAR:
+                bar++;
+                sum = Rational.ZERO;
+                invalid = invalidUnit;
+                break;
+            case BAR_END:
+                if (invalid == null) {
+                    try {
+                        if (Rational.compare(sum, meter.toRational()) != 0) {
+                            errors.append("In Voice " + voice + ", Bar " + bar
+                                    + ", incorrect number of beats encountered: expected "
+                                    + meter + " but got "
+                                    + Rational.toString(sum) + "\n");
+                        }
+                    } catch (ArithmeticException e) {
+                        invalid = e.getMessage();
+                    }
+                }
+                if (invalid != null) {
+                    errors.append("In Voice " + voice + ", Bar " + bar
+                            + ", invalid length: " + invalid + "\n");
+                }
+                break;
+            case NOTE:
+                if (invalid == null && chord >= 0 && depth == 1
+                        && !lengths[chord].equals(lengths[code[pc + 2]])) {
+                    errors.append("In Voice " + voice + ", Bar " + bar
+                            + ", Chord with inconsistent note-lengths encountered: expected "
+                            + lengths[chord] + ", but found "
+                            + lengths[code[pc + 2]] + "\n");
+                }
+                if (depth == 0) {
+                    counted = code[pc + 2];
+                }
+                break;
+            case REST:
+                if (depth == 0) {
+                    counted = code[pc + 1];
+                }
+                break;
+            case CHORD_BEGIN:
+                chord = (depth++ == 0) ? code[pc + 1] : -1;
+                break;
+            case CHORD_END:
+                if (--depth == 0) {
+                    counted = chord; // once its notes are checked
+                }
+                chord = -1;
+                break;
+            case TUPLET_BEGIN:
+                // the elements of a Tuplet are not visited
+                if (depth++ == 0) {
+                    counted = code[pc + 2];
+                }
+                break;
+            case TUPLET_END:
+                depth--;
+                break;
+            case REPEAT:
+                pass = 1;
+                break;
+            case ENDING:
+                if (pass != code[pc + 1]) {
+                    next = code[pc + 2];
+                }
+                break;
+            case JUMP:
+                pass++;
+                next = code[pc + 1];
+                break;
+            default:
+                break; // an Accidental adds no beats
+            }
+            if (counted >= 0 && invalid == null) {
+                if (invalidBeats[counted] != null) {
+                    invalid = invalidBeats[counted];
+                } else {
+                    try {
+                        sum = Rational.add(sum, beats[counted]);
+                    } catch (ArithmeticException e) {
+                        invalid = e.getMessage();
+                    }
+                }
+            }
+            pc = next;
+        }
+        return errors.toString();
+    }
+
+    /**
+     * Add the notes to a SequencePlayer, like the TranslateToSequenceVisitor:
+     * the nth voice goes to track n, modulo the number of tracks of the
+     * player.
+     *
+     * @param player
+     *            The SequencePlayer to add the notes to
+     * @param ticksPerQuarter
+     *            The ticks per quarter note of the player
+     */
+    public void translate(SequencePlayer player, int ticksPerQuarter) {
+        // the ticks of every length, before the scale of a Tuplet
+        int[] ticks = new int[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            ticks[i] = defaultLength.getTicks(4 * lengths[i]
+                    .getTicks(ticksPerQuarter));
+        }
+        int[] current = new int[keyed.length]; // the accidentals of the Bar
+        System.arraycopy(keyed, 0, current, 0, keyed.length);
+        MusicalLength scale = MusicalLength.ONE;
+        int tracks = (player != null) ? player.getTrackCount() : 1;
+        int track = 0;
+        int timeElapsed = 0;
+        int chord = -1; // the length of the Chord that is played, if any
+        int pass = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc]) {
+            case VOICE:
+                track = code[pc + 1] % tracks;
+                timeElapsed = 0;
+                pc += 2;
+                break;
+            case BAR:
+                System.arraycopy(keyed, 0, current, 0, keyed.length);
+                pc += 1;
+                break;
+            case NOTE: {
+                int length = (chord >= 0) ? chord : code[pc + 2];
+                int time = scale.getTicks(ticks[length]);
+                player.addNote(track,
+                        pitches[current[code[pc + 1]]].toMidiNote(),
+                        timeElapsed, time);
+                if (chord < 0) {
+                    timeElapsed += time;
+                }
+                pc += 3;
+                break;
+            }
+            case REST:
+                timeElapsed += scale.getTicks(ticks[code[pc + 1]]);
+                pc += 2;
+                break;
+            case ACCIDENTAL:
+                current[code[pc + 1]] = code[pc + 2];
+                pc += 3;
+                break;
+            case CHORD_BEGIN:
+                chord = code[pc + 1];
+                pc += 2;
+                break;
+            case CHORD_END:
+                timeElapsed += scale.getTicks(ticks[chord]);
+                chord = -1;
+                pc += 1;
+                break;
+            case TUPLET_BEGIN:
+                scale = lengths[code[pc + 1]];
+                pc += 3;
+                break;
+            case TUPLET_END:
+                scale = MusicalLength.ONE; // even in a nested Tuplet
+                pc += 1;
+                break;
+            case REPEAT:
+                pass = 1;
+                pc += 1;
+                break;
+            case ENDING:
+                pc = (pass == code[pc + 1]) ? pc + 3 : code[pc + 2];
+                break;
+            case JUMP:
+                pass++;
+                pc = code[pc + 1];
+                break;
+            default:
+                pc += 1; // BAR_END and REPEAT_END
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the instructions, one per line, with the values of their
+     *         operands
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            sb.append(pc).append(": ").append(NAMES[op]);
+            switch (op) {
+            case VOICE:
+                sb.append(" ").append(voices[code[pc + 1]]);
+                break;
+            case NOTE:
+                sb.append(" ").append(pitches[code[pc + 1]]).append(" ")
+                        .append(lengths[code[pc + 2]]);
+                break;
+            case ACCIDENTAL:
+                sb.append(" ").append(pitches[code[pc + 1]]).append(" ")
+                        .append(pitches[code[pc + 2]]);
+                break;
+            case REST:
+            case CHORD_BEGIN:
+                sb.append(" ").append(lengths[code[pc + 1]]);
+                break;
+            case TUPLET_BEGIN:
+                sb.append(" ").append(lengths[code[pc + 1]]).append(" ")
+                        .append(lengths[code[pc + 2]]);
+                break;
+            default:
+                for (int i = 1; i <= OPERANDS[op]; i++) {
+                    sb.append(" ").append(code[pc + i]);
+                }
+                break;
+            }
+            sb.append("\n");
+            pc += 1 + OPERANDS[op];
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Emits the instructions of a Music.
+     */
+    private static class Compiler implements MusicVisitor<Void> {
+        int[] code = new int[64];
+        int size;
+        final List<Pitch> pitches = new ArrayList<Pitch>();
+        final List<MusicalLength> lengths = new ArrayList<MusicalLength>();
+        final List<String> voices = new ArrayList<String>();
+        private final Map<Pitch, Integer> pitchIndex = new HashMap<Pitch, Integer>();
+        private final Map<MusicalLength, Integer> lengthIndex = new HashMap<MusicalLength, Integer>();
+
+        @Override
+        public Void visit(Accidental a) {
+            emit(ACCIDENTAL, pitch(a.getBasePitch()),
+                    pitch(a.getModifiedPitch()));
+            return null;
+        }
+
+        @Override
+        public Void visit(Tuplet tuplet) {
+            emit(TUPLET_BEGIN, length(tuplet.getScale()),
+                    length(tuplet.getLength()));
+            for (MusicalElement me : tuplet.getMusicalElements()) {
+                me.accept(this);
+            }
+            emit(TUPLET_END);
+            return null;
+        }
+
+        @Override
+        public Void visit(Bar b) {
+            emit(BAR);
+            for (MusicalElement me : b.getElements()) {
+                me.accept(this);
+            }
+            emit(BAR_END);
+            return null;
+        }
+
+        @Override
+        public Void visit(Chord c) {
+            emit(CHORD_BEGIN, length(c.getNotes().get(0).getLength()));
+            for (Note n : c.getNotes()) {
+                n.accept(this);
+            }
+            emit(CHORD_END);
+            return null;
+        }
+
+        @Override
+        public Void visit(Music m) {
+            for (Voice v : m.getVoices().values()) {
+                v.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Note n) {
+            emit(NOTE, pitch(n.getPitch()), length(n.getLength()));
+            return null;
+        }
+
+        @Override
+        public Void visit(Repeat r) {
+            emit(REPEAT);
+            int start = size;
+            for (Bar b : r.getElements()) {
+                b.accept(this);
+            }
+            for (int n = 1; n <= r.getEndingCount(); n++) {
+                emit(ENDING, n, 0);
+                int skip = size - 1;
+                for (Bar b : r.getEnding(n)) {
+                    b.accept(this);
+                }
+                if (n < r.getEndingCount()) {
+                    emit(JUMP, start);
+                }
+                code[skip] = size;
+            }
+            emit(REPEAT_END);
+            return null;
+        }
+
+        @Override
+        public Void visit(Voice v) {
+            voices.add(v.getName());
+            emit(VOICE, voices.size() - 1);
+            for (MusicSequence ms : v.getElements()) {
+                ms.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(Rest rest) {
+            emit(REST, length(rest.getLength()));
+            return null;
+        }
+
+        int pitch(Pitch pitch) {
+            Integer index = pitchIndex.get(pitch);
+            if (index == null) {
+                index = pitches.size();
+                pitches.add(pitch);
+                pitchIndex.put(pitch, index);
+            }
+            return index;
+        }
+
+        private int length(MusicalLength length) {
+            Integer index = lengthIndex.get(length);
+            if (index == null) {
+                index = lengths.size();
+                lengths.add(length);
+                lengthIndex.put(length, index);
+            }
+            return index;
+        }
+
+        private void emit(int... instruction) {
+            if (size + instruction.length > code.length) {
+                int[] grown = new int[Math.max(code.length * 2, size
+                        + instruction.length)];
+                System.arraycopy(code, 0, grown, 0, size);
+                code = grown;
+            }
+            System.arraycopy(instruction, 0, code, size, instruction.length);
+            size += instruction.length;
+        }
+    }
+}
@@ -21,8 +21,13 @@ public class ExtraMath {
         return gcd(b, a % b);
     }
 
+    /**
+     * @return the least common multiple of a and b, or Integer.MAX_VALUE if it
+     *         does not fit into an int
+     */
     public static int lcm(int a, int b) {
-        return (a / gcd(a, b)) * b;
+        long lcm = (long) (a / gcd(a, b)) * b;
+        return (lcm > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) lcm;
     }
 
 }
@@ -0,0 +1,92 @@
+package music.utils;
+
+/**
+ * Exact arithmetic on fractions of ints, without allocating. A fraction is
+ * packed into a long, with the numerator in the high and the denominator in
+ * the low 32 bits, and is always in lowest terms with a positive
+ * denominator, so two fractions are equal exactly when their longs are.
+ *
+ * Results that do not fit into ints throw an ArithmeticException, rather than
+ * wrapping around.
+ *
+ */
+public class Rational {
+
+    public static final long ZERO = of(0, 1);
+    public static final long ONE = of(1, 1);
+
+    private Rational() {
+        // only static methods
+    }
+
+    /**
+     * @return the fraction num/denom
+     * @throws ArithmeticException
+     *             if denom is 0
+     */
+    public static long of(int num, int denom) {
+        return reduce(num, denom);
+    }
+
+    public static int num(long fraction) {
+        return (int) (fraction >> 32);
+    }
+
+    public static int denom(long fraction) {
+        return (int) fraction;
+    }
+
+    public static long add(long a, long b) {
+        return reduce((long) num(a) * denom(b) + (long) num(b) * denom(a),
+                (long) denom(a) * denom(b));
+    }
+
+    public static long multiply(long a, long b) {
+        return reduce((long) num(a) * num(b), (long) denom(a) * denom(b));
+    }
+
+    /**
+     * @return a negative number, 0 or a positive number as a is less than,
+     *         equal to or greater than b
+     */
+    public static int compare(long a, long b) {
+        long left = (long) num(a) * denom(b);
+        long right = (long) num(b) * denom(a);
+        return (left < right) ? -1 : ((left == right) ? 0 : 1);
+    }
+
+    /**
+     * @return the greatest common divisor of the magnitudes of a and b, or 1
+     *         if both are 0
+     */
+    public static long gcd(long a, long b) {
+        a = Math.abs(a);
+        b = Math.abs(b);
+        while (b != 0) {
+            long r = a % b;
+            a = b;
+            b = r;
+        }
+        return (a == 0) ? 1 : a;
+    }
+
+    public static String toString(long fraction) {
+        return num(fraction) + "/" + denom(fraction);
+    }
+
+    private static long reduce(long num, long denom) {
+        if (denom == 0) {
+            throw new ArithmeticException("Zero denominator: " + num + "/0");
+        }
+        long gcd = gcd(num, denom);
+        if (denom < 0) {
+            gcd = -gcd;
+        }
+        num /= gcd;
+        denom /= gcd;
+        if (num != (int) num || denom != (int) denom) {
+            throw new ArithmeticException("Overflow: " + num + "/" + denom);
+        }
+        return (num << 32) | (denom & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,571 @@
+package music.visitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import sound.Pitch;
+import sound.SequencePlayer;
+
+import music.ast.Accidental;
+import music.ast.Bar;
+import music.ast.Chord;
+import music.ast.Music;
+import music.ast.MusicSequence;
+import music.ast.MusicalElement;
+import music.ast.MusicalLength;
+import music.ast.Note;
+import music.ast.Repeat;
+import music.ast.Rest;
+import music.ast.Tuplet;
+import music.ast.Voice;
+import music.utils.ExtraMath;
+import music.utils.Rational;
+
+/**
+ * Do the work of the MusicalWellFormednessVisitor, the
+ * OptimalTicksPerQuarterNoteVisitor and the TranslateToSequenceVisitor in a
+ * single walk over the Music, with the same results.
+ *
+ * Every Bar is walked once, even if it is played several times: the walk
+ * sums up its length, finds the LCM of its lengths and records its notes as
+ * lengths rather than ticks, since the ticks per quarter note are only known
+ * once the walk is done. Playing the Bar is then a matter of going over the
+ * records, see {@link #translate(SequencePlayer)}. The records are not
+ * changed by translating them, so the voices can be translated at the same
+ * time, see {@link #translate(SequencePlayer, ForkJoinPool)}.
+ *
+ */
+public class FusedAnalysisVisitor implements MusicVisitor<Void> {
+
+    // Bars of a voice that a task translates, see translate(player, pool)
+    private static final int CHUNK = 256;
+
+    private Map<Pitch, Accidental> currentAccidentals; // copied on write
+    private boolean copied; // whether currentAccidentals is a copy
+    private Map<Pitch, Accidental> keyAccidentals;
+    private MusicalLength meter;
+    private MusicalLength defaultLength;
+    private MusicalLength scale;
+    private boolean checking; // whether chords are checked, as in a Bar
+    private StringBuilder errors;
+    private int ticksPerQuarter;
+    private int lcm; // of the sequence that is being walked
+    private String currentVoice;
+    private int bar; // number of the played bar, for errors
+    private SequencePlayer sp;
+
+    // What was found in each Bar, and the Bars that each voice plays
+    private final Map<Bar, BarResult> bars;
+    private final List<List<BarResult>> voices;
+    private List<BarResult> played;
+    private BarResult current;
+
+    // The notes of all Bars; a null pitch only advances the time
+    private Pitch[] pitches;
+    private MusicalLength[] lengths;
+    private MusicalLength[] scales;
+    private boolean[] advances;
+    private int records;
+
+    private static class BarResult {
+        int lcm;
+        List<String> errors; // without the voice and bar, or null
+        int start; // of the records
+        int end;
+    }
+
+    public FusedAnalysisVisitor() {
+        errors = new StringBuilder();
+        scale = MusicalLength.ONE;
+        bars = new IdentityHashMap<Bar, BarResult>();
+        voices = new ArrayList<List<BarResult>>();
+        pitches = new Pitch[64];
+        lengths = new MusicalLength[64];
+        scales = new MusicalLength[64];
+        advances = new boolean[64];
+    }
+
+    /**
+     * @return the errors that the MusicalWellFormednessVisitor would find
+     */
+    public String getErrors() {
+        return errors.toString();
+    }
+
+    /**
+     * @return what the OptimalTicksPerQuarterNoteVisitor would return
+     */
+    public int getTicksPerQuarterNote() {
+        return ticksPerQuarter;
+    }
+
+    /**
+     * Add the notes of the Music to a SequencePlayer, like the
+     * TranslateToSequenceVisitor does with getTicksPerQuarterNote(): the nth
+     * voice goes to track n, modulo the number of tracks of the player.
+     *
+     * @param player
+     *            The SequencePlayer to add the notes to
+     */
+    public void translate(SequencePlayer player) {
+        translate(player, null);
+    }
+
+    /**
+     * Add the notes of the Music to a SequencePlayer like translate(player),
+     * with the tasks of a pool: one for every voice if every voice has a
+     * track of its own, and one for every CHUNK bars of a long voice if the
+     * pool has more than one thread. If a voice cannot be translated, the
+     * error of the first such voice is thrown, as translate(player) would.
+     *
+     * A long voice is translated in two phases, as the bars only depend on
+     * each other through the tick at which they start. First the ticks and
+     * notes of every bar are counted, and summed up into the tick at which
+     * every bar starts and the place of its notes in an array of all notes.
+     * Then every bar fills in its own notes. The notes are added to the
+     * track in order, by a single thread, since a track cannot be added to
+     * at the same time.
+     *
+     * @param player
+     *            The SequencePlayer to add the notes to
+     * @param pool
+     *            The pool that translates the voices, or null to translate
+     *            them one after the other
+     */
+    public void translate(SequencePlayer player, final ForkJoinPool pool) {
+        sp = player;
+        int tracks = (player != null) ? player.getTrackCount() : 1;
+        if (pool == null || voices.size() < 2 || tracks < voices.size()) {
+            for (int v = 0; v < voices.size(); v++) {
+                translate(v, v % tracks, pool);
+            }
+            return;
+        }
+        Runnable[] work = new Runnable[voices.size()];
+        for (int v = 0; v < voices.size(); v++) {
+            final int voice = v;
+            work[v] = new Runnable() {
+                @Override
+                public void run() {
+                    translate(voice, voice, pool);
+                }
+            };
+        }
+        runAll(pool, work);
+    }
+
+    /**
+     * Add the notes of a voice to a track of the SequencePlayer.
+     */
+    private void translate(int voice, int track, ForkJoinPool pool) {
+        final List<BarResult> played = voices.get(voice);
+        final int size = played.size();
+        if (pool == null || pool.getParallelism() < 2 || size < 2 * CHUNK) {
+            int timeElapsed = 0;
+            for (BarResult result : played) {
+                for (int i = result.start; i < result.end; i++) {
+                    int time = time(i);
+                    if (pitches[i] != null) {
+                        sp.addNote(track, pitches[i].toMidiNote(),
+                                timeElapsed, time);
+                    }
+                    if (advances[i]) {
+                        timeElapsed += time;
+                    }
+                }
+            }
+            return;
+        }
+
+        // the ticks and notes of every bar, after the one before it
+        final int[] starts = new int[size + 1];
+        final int[] offsets = new int[size + 1];
+        inChunks(pool, size, new Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int b = from; b < to; b++) {
+                    BarResult result = played.get(b);
+                    int ticks = 0;
+                    int notes = 0;
+                    for (int i = result.start; i < result.end; i++) {
+                        if (pitches[i] != null) {
+                            notes++;
+                        }
+                        if (advances[i]) {
+                            ticks += time(i);
+                        }
+                    }
+                    starts[b + 1] = ticks;
+                    offsets[b + 1] = notes;
+                }
+            }
+        });
+        prefixSum(pool, starts);
+        prefixSum(pool, offsets);
+
+        final int count = offsets[size];
+        final int[] notes = new int[count];
+        final int[] startTicks = new int[count];
+        final int[] numTicks = new int[count];
+        inChunks(pool, size, new Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int b = from; b < to; b++) {
+                    BarResult result = played.get(b);
+                    int timeElapsed = starts[b];
+                    int note = offsets[b];
+                    for (int i = result.start; i < result.end; i++) {
+                        int time = time(i);
+                        if (pitches[i] != null) {
+                            notes[note] = pitches[i].toMidiNote();
+                            startTicks[note] = timeElapsed;
+                            numTicks[note] = time;
+                            note++;
+                        }
+                        if (advances[i]) {
+                            timeElapsed += time;
+                        }
+                    }
+                }
+            }
+        });
+        for (int n = 0; n < count; n++) {
+            sp.addNote(track, notes[n], startTicks[n], numTicks[n]);
+        }
+    }
+
+    /**
+     * @return the ticks of a record
+     */
+    private int time(int i) {
+        return scales[i].getTicks(defaultLength.getTicks(4 * lengths[i]
+                .getTicks(ticksPerQuarter)));
+    }
+
+    /**
+     * Work on a range of the bars of a voice.
+     */
+    private interface Chunk {
+        void run(int from, int to);
+    }
+
+    /**
+     * Work on every CHUNK bars of size bars with a task of a pool.
+     */
+    private static void inChunks(ForkJoinPool pool, int size, final Chunk chunk) {
+        Runnable[] work = new Runnable[(size + CHUNK - 1) / CHUNK];
+        for (int c = 0; c < work.length; c++) {
+            final int from = c * CHUNK;
+            final int to = Math.min(size, from + CHUNK);
+            work[c] = new Runnable() {
+                @Override
+                public void run() {
+                    chunk.run(from, to);
+                }
+            };
+        }
+        runAll(pool, work);
+    }
+
+    /**
+     * Replace every element of an array by the sum of it and the ones before
+     * it, in chunks: first every chunk is summed up by itself, then the sum
+     * of the chunks before it is added to every chunk. This is what
+     * Arrays.parallelPrefix does, which is not in the Java 7 API that the code
+     * is written to.
+     */
+    private static void prefixSum(ForkJoinPool pool, final int[] a) {
+        inChunks(pool, a.length, new Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from + 1; i < to; i++) {
+                    a[i] += a[i - 1];
+                }
+            }
+        });
+        final int[] before = new int[(a.length + CHUNK - 1) / CHUNK];
+        for (int c = 1; c < before.length; c++) {
+            before[c] = before[c - 1] + a[c * CHUNK - 1];
+        }
+        inChunks(pool, a.length, new Chunk() {
+            @Override
+            public void run(int from, int to) {
+                int sum = before[from / CHUNK];
+                for (int i = from; i < to; i++) {
+                    a[i] += sum;
+                }
+            }
+        });
+    }
+
+    /**
+     * Run every piece of work in a task of a pool, or of the pool that runs
+     * this, and wait for all of them. If any of them fails, the error of the
+     * first one that fails is thrown as it is.
+     */
+    private static void runAll(ForkJoinPool pool, final Runnable[] work) {
+        final Throwable[] failures = new Throwable[work.length];
+        final RecursiveAction[] tasks = new RecursiveAction[work.length];
+        for (int w = 0; w < work.length; w++) {
+            final int index = w;
+            tasks[w] = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    try {
+                        work[index].run();
+                    } catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                }
+            };
+        }
+        RecursiveAction all = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        };
+        if (ForkJoinTask.inForkJoinPool()) {
+            all.invoke();
+        } else {
+            pool.invoke(all);
+        }
+        for (Throwable failure : failures) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure != null) {
+                throw (Error) failure;
+            }
+        }
+    }
+
+    @Override
+    public Void visit(Accidental a) {
+        if (!copied) {
+            currentAccidentals = new HashMap<Pitch, Accidental>(keyAccidentals);
+            copied = true;
+        }
+        currentAccidentals.put(a.getBasePitch(), a);
+        return null;
+    }
+
+    @Override
+    public Void visit(Bar b) {
+        BarResult result = walk(b);
+        lcm = ExtraMath.lcm(lcm, result.lcm);
+        play(result);
+        return null;
+    }
+
+    @Override
+    public Void visit(Chord c) {
+        MusicalLength length = c.getNotes().get(0).getLength();
+        for (Note n : c.getNotes()) {
+            if (checking && !length.equals(n.getLength())) {
+                error("Chord with inconsistent note-lengths encountered: expected "
+                        + length + ", but found " + n.getLength());
+            }
+            record(modified(n.getPitch()), length, false);
+        }
+        record(null, length, true);
+        return null;
+    }
+
+    @Override
+    public Void visit(Music m) {
+        keyAccidentals = m.getKeySignature().getDefaultAccidentals();
+        meter = m.getMeter();
+        defaultLength = m.getDefaultLength();
+        int musicLcm = 1;
+        for (Voice v : m.getVoices().values()) {
+            v.accept(this);
+            musicLcm = ExtraMath.lcm(musicLcm, lcm);
+        }
+        ticksPerQuarter = ExtraMath.lcm(musicLcm, defaultLength.getDenom());
+        return null;
+    }
+
+    @Override
+    public Void visit(Note n) {
+        record(modified(n.getPitch()), n.getLength(), true);
+        return null;
+    }
+
+    @Override
+    public Void visit(Repeat r) {
+        // every written bar is walked once, and played as often as it is
+        // played
+        int repeatLcm = 1;
+        for (Bar b : r.getElements()) {
+            repeatLcm = ExtraMath.lcm(repeatLcm, walk(b).lcm);
+        }
+        for (int n = 1; n <= r.getEndingCount(); n++) {
+            for (Bar b : r.getEnding(n)) {
+                repeatLcm = ExtraMath.lcm(repeatLcm, walk(b).lcm);
+            }
+        }
+        lcm = ExtraMath.lcm(lcm, repeatLcm);
+        for (int i = 0; i < r.getApparentSize(); i++) {
+            play(bars.get(r.getApparentBar(i)));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(Voice v) {
+        currentVoice = v.getName();
+        bar = 0;
+        played = new ArrayList<BarResult>();
+        voices.add(played);
+        int voiceLcm = 1;
+        for (MusicSequence ms : v.getElements()) {
+            lcm = 1;
+            ms.accept(this);
+            voiceLcm = ExtraMath.lcm(voiceLcm, lcm);
+        }
+        lcm = voiceLcm;
+        return null;
+    }
+
+    @Override
+    public Void visit(Rest rest) {
+        record(null, rest.getLength(), true);
+        return null;
+    }
+
+    @Override
+    public Void visit(Tuplet tuplet) {
+        boolean wasChecking = checking;
+        checking = false; // as the elements of a tuplet are not visited
+        scale = tuplet.getScale();
+        for (MusicalElement me : tuplet.getMusicalElements()) {
+            me.accept(this);
+        }
+        scale = MusicalLength.ONE;
+        checking = wasChecking;
+        return null;
+    }
+
+    /**
+     * Walk a Bar, unless it was walked before.
+     *
+     * @return what was found in the Bar
+     */
+    private BarResult walk(Bar b) {
+        BarResult result = bars.get(b);
+        if (result != null) {
+            return result;
+        }
+        result = new BarResult();
+        current = result;
+        result.start = records;
+        currentAccidentals = keyAccidentals;
+        copied = false;
+        checking = true;
+        int barLcm = 1;
+        long sum = Rational.ZERO;
+        long unit = Rational.ZERO;
+        String invalid = null;
+        try {
+            unit = defaultLength.toRational();
+        } catch (ArithmeticException e) {
+            invalid = e.getMessage();
+            checking = false;
+        }
+        MusicalLength last = null; // lengths tend to come in runs
+        long product = Rational.ZERO;
+        for (MusicalElement me : b.getElements()) {
+            me.accept(this);
+            MusicalLength length = me.getLength();
+            int denom = length.getDenom();
+            if (barLcm <= 0 || denom <= 0 || barLcm % denom != 0) {
+                barLcm = ExtraMath.lcm(barLcm, denom);
+            }
+            if (invalid == null) {
+                try {
+                    if (length != last) {
+                        product = Rational.multiply(length.toRational(), unit);
+                        last = length;
+                    }
+                    sum = Rational.add(sum, product);
+                } catch (ArithmeticException e) {
+                    // the well-formedness check stops at the first one
+                    invalid = e.getMessage();
+                    checking = false;
+                }
+            }
+        }
+        if (invalid != null) {
+            error("invalid length: " + invalid);
+        } else {
+            try {
+                if (Rational.compare(sum, meter.toRational()) != 0) {
+                    error("incorrect number of beats encountered: expected "
+                            + meter + " but got " + Rational.toString(sum));
+                }
+            } catch (ArithmeticException e) {
+                error("invalid length: " + e.getMessage());
+            }
+        }
+        result.lcm = barLcm;
+        result.end = records;
+        bars.put(b, result);
+        current = null;
+        return result;
+    }
+
+    /**
+     * Play a walked Bar in the current voice.
+     */
+    private void play(BarResult result) {
+        bar++;
+        if (result.errors != null) {
+            for (String error : result.errors) {
+                errors.append("In Voice " + currentVoice + ", Bar " + bar
+                        + ", " + error + "\n");
+            }
+        }
+        played.add(result);
+    }
+
+    private void error(String message) {
+        if (current.errors == null) {
+            current.errors = new ArrayList<String>();
+        }
+        current.errors.add(message);
+    }
+
+    private Pitch modified(Pitch pitch) {
+        Accidental accidental = currentAccidentals.get(pitch);
+        return (accidental != null) ? accidental.getModifiedPitch() : pitch;
+    }
+
+    private void record(Pitch pitch, MusicalLength length, boolean advance) {
+        if (records == pitches.length) {
+            int capacity = records * 2;
+            Pitch[] newPitches = new Pitch[capacity];
+            MusicalLength[] newLengths = new MusicalLength[capacity];
+            MusicalLength[] newScales = new MusicalLength[capacity];
+            boolean[] newAdvances = new boolean[capacity];
+            System.arraycopy(pitches, 0, newPitches, 0, records);
+            System.arraycopy(lengths, 0, newLengths, 0, records);
+            System.arraycopy(scales, 0, newScales, 0, records);
+            System.arraycopy(advances, 0, newAdvances, 0, records);
+            pitches = newPitches;
+            lengths = newLengths;
+            scales = newScales;
+            advances = newAdvances;
+        }
+        pitches[records] = pitch;
+        lengths[records] = length;
+        scales[records] = scale;
+        advances[records] = advance;
+        records++;
+    }
+}
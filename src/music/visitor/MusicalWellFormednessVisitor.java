@@ -12,6 +12,7 @@ import music.ast.Repeat;
 import music.ast.Rest;
 import music.ast.Tuplet;
 import music.ast.Voice;
+import music.utils.Rational;
 
 /**
  * Walk the Music Abstract Syntax Tree, verifying that it is actually musically
@@ -58,17 +59,23 @@ public class MusicalWellFormednessVisitor implements
     @Override
     public MusicalLength visit(Bar b) {
         bar++;
-        MusicalLength sum = new MusicalLength(0, 1);
-        for (MusicalElement me : b.getElements()) {
-            MusicalLength ml = me.accept(this);
-            sum = sum.add(ml.multiply(defaultLength.getNum(), defaultLength.getDenom()));
-        }
-        double expectedRatio = (double) meter.getNum() / meter.getDenom();
-        double actualRatio = (double) sum.getNum() / sum.getDenom();
-        if (actualRatio != expectedRatio) {
-            errors.append(getErrorMessage()
-                    + "incorrect number of beats encountered: expected "
-                    + meter + " but got " + sum + "\n");
+        // exact fractions, see Rational
+        try {
+            long scale = defaultLength.toRational();
+            long sum = Rational.ZERO;
+            for (MusicalElement me : b.getElements()) {
+                MusicalLength ml = me.accept(this);
+                sum = Rational.add(sum,
+                        Rational.multiply(ml.toRational(), scale));
+            }
+            if (Rational.compare(sum, meter.toRational()) != 0) {
+                errors.append(getErrorMessage()
+                        + "incorrect number of beats encountered: expected "
+                        + meter + " but got " + Rational.toString(sum) + "\n");
+            }
+        } catch (ArithmeticException e) {
+            errors.append(getErrorMessage() + "invalid length: "
+                    + e.getMessage() + "\n");
         }
         return null;
     }
@@ -104,8 +111,8 @@ public class MusicalWellFormednessVisitor implements
 
     @Override
     public MusicalLength visit(Repeat r) {
-        for (Bar b : r.getApparentElments()) {
-            b.accept(this);
+        for (int i = 0; i < r.getApparentSize(); i++) {
+            r.getApparentBar(i).accept(this);
         }
         return null;
     }
@@ -20,9 +20,80 @@ import music.utils.ExtraMath;
  * common multiple of the denominators, so that the minimum number of ticks per
  * quarter note can be determined.
  * 
+ * The visitor can be given a maximum number of ticks per quarter note. If the
+ * least common multiple is larger than that, the piece cannot be played
+ * exactly with a resolution that is allowed, and the maximum is returned
+ * instead: the piece is quantized. A translation then has to round the notes
+ * to the nearest tick, as TranslateToSequenceVisitor does when it is told to
+ * quantize; rounding the exact time at which every note starts and ends,
+ * rather than the length of every note, keeps the error of each note within
+ * half a tick, however many notes come before it. The maximum should have
+ * many divisors, so that the common lengths are still exact.
+ * 
  */
 public class OptimalTicksPerQuarterNoteVisitor implements MusicVisitor<Integer> {
 
+    private final int maxTicksPerQuarterNote; // 0 if there is no maximum
+    private boolean quantized;
+
+    /**
+     * Make a visitor that finds the exact number of ticks per quarter note,
+     * however large, or Integer.MAX_VALUE if it does not fit into an int.
+     */
+    public OptimalTicksPerQuarterNoteVisitor() {
+        maxTicksPerQuarterNote = 0;
+    }
+
+    /**
+     * Make a visitor that finds the exact number of ticks per quarter note,
+     * or quantizes the piece if that is more than a maximum.
+     * 
+     * @param maxTicksPerQuarterNote
+     *            The largest number of ticks per quarter note to return
+     * @throws IllegalArgumentException
+     *             if the maximum is less than 1
+     */
+    public OptimalTicksPerQuarterNoteVisitor(int maxTicksPerQuarterNote) {
+        if (maxTicksPerQuarterNote < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum ticks per quarter note must be at least 1");
+        }
+        this.maxTicksPerQuarterNote = maxTicksPerQuarterNote;
+    }
+
+    /**
+     * @return Whether the last Music visited needs more ticks per quarter note
+     *         than the maximum, so that it was given the maximum
+     */
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /**
+     * @return The most that a note of the last Music visited can start or end
+     *         away from its exact time when it is rounded to the nearest tick,
+     *         in quarter notes: 0 if it was not quantized
+     */
+    public double getQuantizationError() {
+        return quantized ? 0.5 / maxTicksPerQuarterNote : 0;
+    }
+
+    /**
+     * The least common multiple, or 1 once it is more than the maximum, as the
+     * maximum will be returned whatever the other denominators are.
+     */
+    private int lcm(int a, int b) {
+        if (maxTicksPerQuarterNote == 0) {
+            return ExtraMath.lcm(a, b);
+        }
+        long lcm = (long) (a / ExtraMath.gcd(a, b)) * b;
+        if (lcm > maxTicksPerQuarterNote) {
+            quantized = true;
+            return 1;
+        }
+        return (int) lcm;
+    }
+
     @Override
     public Integer visit(Accidental a) {
         return 1;
@@ -37,7 +108,7 @@ public class OptimalTicksPerQuarterNoteVisitor implements MusicVisitor<Integer>
     public Integer visit(Bar b) {
         int lcm = 1;
         for (MusicalElement me : b.getElements()) {
-            lcm = ExtraMath.lcm(lcm, me.accept(this));
+            lcm = lcm(lcm, me.accept(this));
         }
         return lcm;
     }
@@ -49,11 +120,17 @@ public class OptimalTicksPerQuarterNoteVisitor implements MusicVisitor<Integer>
 
     @Override
     public Integer visit(Music m) {
+        quantized = false;
         int lcm = 1;
         for (Voice v : m.getVoices().values()) {
-            lcm = ExtraMath.lcm(lcm, v.accept(this));
+            lcm = lcm(lcm, v.accept(this));
         }
-        return ExtraMath.lcm(lcm, m.getDefaultLength().getDenom());
+        lcm = lcm(lcm, m.getDefaultLength().getDenom());
+        // a denominator of 0 makes it 0, as it does without a maximum
+        if (lcm == 0) {
+            quantized = false;
+        }
+        return quantized ? maxTicksPerQuarterNote : lcm;
     }
 
     @Override
@@ -63,9 +140,15 @@ public class OptimalTicksPerQuarterNoteVisitor implements MusicVisitor<Integer>
 
     @Override
     public Integer visit(Repeat r) {
+        // playing a bar again needs no other ticks, so each bar counts once
         int lcm = 1;
-        for (Bar b : r.getApparentElments()) {
-            lcm = ExtraMath.lcm(lcm, b.accept(this));
+        for (Bar b : r.getElements()) {
+            lcm = lcm(lcm, b.accept(this));
+        }
+        for (int n = 1; n <= r.getEndingCount(); n++) {
+            for (Bar b : r.getEnding(n)) {
+                lcm = lcm(lcm, b.accept(this));
+            }
         }
         return lcm;
     }
@@ -74,7 +157,7 @@ public class OptimalTicksPerQuarterNoteVisitor implements MusicVisitor<Integer>
     public Integer visit(Voice v) {
         int lcm = 1;
         for (MusicSequence ms : v.getElements()) {
-            lcm = ExtraMath.lcm(lcm, ms.accept(this));
+            lcm = lcm(lcm, ms.accept(this));
         }
         return lcm;
     }
@@ -27,6 +27,14 @@ import music.ast.Voice;
  * the MIDI, ignoring any errors about well-formedness that may have occurred.
  * Bars that are too short or too long will be played; chords that have
  * different note lengths will be played using the length of the first note.
+ * The nth voice goes to track n, modulo the number of tracks of the
+ * SequencePlayer.
+ * 
+ * If the ticks per quarter note cannot represent every length exactly, see
+ * OptimalTicksPerQuarterNoteVisitor, the visitor can be told to quantize: it
+ * then keeps the exact time of the voice, and starts and ends every note at
+ * the tick nearest to its exact time, so that the rounding errors do not add
+ * up from one note to the next.
  * 
  */
 public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
@@ -38,6 +46,11 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
     private boolean advanceTime;
     private int timeElapsed;
     private int ticksPerQuarter;
+    private boolean quantize;
+    private double exactTime; // in ticks, if quantizing
+    private double quantizationError; // the largest so far, in ticks
+    private int voices; // visited so far
+    private int track; // of the current voice
     private SequencePlayer sp;
 
     public TranslateToSequenceVisitor(SequencePlayer player, int tpq) {
@@ -45,7 +58,32 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
         sp = player;
         ticksPerQuarter = tpq;
         advanceTime = true;
-        scale = new MusicalLength(1, 1);
+        scale = MusicalLength.ONE;
+    }
+
+    /**
+     * Make a visitor that may round the notes to the nearest tick.
+     * 
+     * @param player
+     *            The SequencePlayer to add the notes to
+     * @param tpq
+     *            The ticks per quarter note of the player
+     * @param quantize
+     *            Whether to round the notes, if tpq was not found by an
+     *            OptimalTicksPerQuarterNoteVisitor without quantizing
+     */
+    public TranslateToSequenceVisitor(SequencePlayer player, int tpq,
+            boolean quantize) {
+        this(player, tpq);
+        this.quantize = quantize;
+    }
+
+    /**
+     * @return The most that a note started or ended away from its exact time,
+     *         in quarter notes: 0 unless quantizing
+     */
+    public double getQuantizationError() {
+        return quantizationError / ticksPerQuarter;
     }
 
     private int getTime(MusicalElement me) {
@@ -53,6 +91,23 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
                 .getTicks(ticksPerQuarter)));
     }
 
+    private double getExactTime(MusicalElement me) {
+        MusicalLength length = me.getLength();
+        return 4.0 * ticksPerQuarter * length.getNum() * defaultLength.getNum()
+                * scale.getNum()
+                / ((double) length.getDenom() * defaultLength.getDenom() * scale
+                        .getDenom());
+    }
+
+    /**
+     * @return the tick nearest to an exact time
+     */
+    private int round(double time) {
+        long tick = Math.round(time);
+        quantizationError = Math.max(quantizationError, Math.abs(time - tick));
+        return (int) tick;
+    }
+
     private void initAccidentals() {
         currentAccidentals = new HashMap<Pitch, Accidental>();
         currentAccidentals.putAll(keyAccidentals);
@@ -82,6 +137,10 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
             t.accept(this);
         }
         advanceTime = true;
+        if (quantize) {
+            exactTime += getExactTime(c.getNotes().get(0));
+            return null;
+        }
         int time = getTime(c.getNotes().get(0));
         timeElapsed += time;
         return null;
@@ -104,8 +163,18 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
         if (currentAccidentals.containsKey(play)) {
             play = currentAccidentals.get(play).getModifiedPitch();
         }
+        if (quantize) {
+            double time = getExactTime(n);
+            int start = round(exactTime);
+            sp.addNote(track, play.toMidiNote(), start, round(exactTime + time)
+                    - start);
+            if (advanceTime) {
+                exactTime += time;
+            }
+            return null;
+        }
         int time = getTime(n);
-        sp.addNote(play.toMidiNote(), timeElapsed, time);
+        sp.addNote(track, play.toMidiNote(), timeElapsed, time);
         if (advanceTime) {
             timeElapsed += time;
         }
@@ -114,8 +183,8 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
 
     @Override
     public Void visit(Repeat r) {
-        for (Bar b : r.getApparentElments()) {
-            b.accept(this);
+        for (int i = 0; i < r.getApparentSize(); i++) {
+            r.getApparentBar(i).accept(this);
         }
         return null;
     }
@@ -123,6 +192,9 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
     @Override
     public Void visit(Voice v) {
         timeElapsed = 0;
+        exactTime = 0;
+        track = (sp != null) ? voices % sp.getTrackCount() : 0;
+        voices++;
         for (MusicSequence ms : v.getElements()) {
             ms.accept(this);
         }
@@ -131,6 +203,10 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
 
     @Override
     public Void visit(Rest rest) {
+        if (quantize) {
+            exactTime += getExactTime(rest);
+            return null;
+        }
         timeElapsed += getTime(rest);
         return null;
     }
@@ -141,7 +217,7 @@ public class TranslateToSequenceVisitor implements MusicVisitor<Void> {
         for (MusicalElement me : tuplet.getMusicalElements()) {
             me.accept(this);
         }
-        scale = new MusicalLength(1, 1);
+        scale = MusicalLength.ONE;
         return null;
     }
 
@@ -0,0 +1,415 @@
+package player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import music.ast.Bar;
+import music.ast.Music;
+import music.ast.MusicSequence;
+import music.ast.MusicalType;
+import music.ast.Voice;
+import player.Lexer.TokenMismatchException;
+import player.Parser.ParseException;
+
+/**
+ * Keeps the Music of a text up to date while the text is being edited.
+ *
+ * After every full parse, the bars of the text are indexed by their position.
+ * An edit that only touches plain bars, which consist of musical tokens and
+ * comments and end in a single |, only has those bars lexed and parsed again,
+ * and the new Bars are spliced into the Voice in place of the old ones. Any
+ * other edit, e.g. one that touches the header, a field, a repeat or a voice
+ * switch, or one that turns a plain bar into something else, falls back to a
+ * full parse. Either way, the Music is the same as that of parsing the whole
+ * edited text with getMusic().
+ *
+ */
+public class IncrementalParser {
+
+    private final StringBuilder text;
+    private Music music;
+    private List<BarSpan> bars; // in the order of the text
+    private boolean indexed; // false if the last parse failed
+    private int fullParses;
+
+    /**
+     * The text of a bar, and the Bar that it was parsed into.
+     */
+    private static class BarSpan {
+        int begin; // after the barline or field line before the bar
+        int start; // of the barline that closes the bar
+        int end;
+        boolean single; // the barline is |
+        boolean plain; // the bar has only musical tokens and ends in |
+        Bar bar;
+        Voice voice; // that the bar is an element of, or null
+
+        BarSpan(int begin, int start, int end, boolean single, boolean plain,
+                Bar bar, Voice voice) {
+            this.begin = begin;
+            this.start = start;
+            this.end = end;
+            this.single = single;
+            this.plain = plain;
+            this.bar = bar;
+            this.voice = voice;
+        }
+    }
+
+    /**
+     * Construct an IncrementalParser, and parse the given text in full.
+     *
+     * @param input
+     *            The text to start from (copied)
+     * @throws ParseException
+     *             if the text cannot be lexed or parsed
+     */
+    public IncrementalParser(CharSequence input) throws ParseException {
+        this.text = new StringBuilder(input);
+        this.bars = new ArrayList<BarSpan>();
+        parseAll();
+    }
+
+    /**
+     * @return The Music of the text, as of the last edit that could be parsed
+     */
+    public Music getMusic() {
+        return music;
+    }
+
+    /**
+     * @return The current text
+     */
+    public CharSequence getText() {
+        return text;
+    }
+
+    /**
+     * @return The number of times that the whole text was parsed
+     */
+    public int getFullParses() {
+        return fullParses;
+    }
+
+    /**
+     * Replace part of the text, and bring the Music up to date. The Music is
+     * changed in place when only bars are parsed again.
+     *
+     * @param start
+     *            Start of the replaced text
+     * @param end
+     *            End of the replaced text, before the edit
+     * @param replacement
+     *            The new text
+     * @return The Music of the edited text
+     * @throws ParseException
+     *             if the edited text cannot be lexed or parsed. The edit is
+     *             kept, and the next edit parses the whole text again.
+     */
+    public Music edit(int start, int end, CharSequence replacement)
+            throws ParseException {
+        text.replace(start, end, replacement.toString());
+        // Not indexed until the edit has been parsed, so that if parsing
+        // fails in any way, the next edit parses the whole text again
+        boolean wasIndexed = indexed;
+        indexed = false;
+        if (wasIndexed && parseBars(start, end, replacement.length())) {
+            indexed = true;
+        } else {
+            parseAll();
+        }
+        return music;
+    }
+
+    /**
+     * Parse the whole text, and index its bars.
+     */
+    private void parseAll() throws ParseException {
+        fullParses++;
+        indexed = false;
+        bars.clear();
+        TokenBuffer tokens = lex(text.toString());
+        final List<Bar> closed = new ArrayList<Bar>();
+        MusicBuilder builder = new MusicBuilder() {
+            @Override
+            protected void barClosed(Bar bar) {
+                closed.add(bar);
+            }
+        };
+        try {
+            new Parser(tokens).parse(builder);
+        } catch (RuntimeException e) {
+            // e.g. a Chord that cannot hold what was put into it
+            throw new ParseException(e.getMessage());
+        }
+        music = builder.getMusic();
+
+        // Bars in a Repeat, empty bars and bars that are never put into
+        // their Voice have no Voice here
+        Map<Bar, Voice> voices = new IdentityHashMap<Bar, Voice>();
+        for (Voice voice : music.getVoices().values()) {
+            for (MusicSequence ms : voice.getElements()) {
+                if (ms.getMusicalType() == MusicalType.BAR) {
+                    voices.put((Bar) ms, voice);
+                }
+            }
+        }
+        bars.addAll(index(tokens, 0, closed, voices));
+        indexed = true;
+    }
+
+    /**
+     * Parse the plain bars around an edit of the text again, and splice them
+     * into their Voice.
+     *
+     * @return false if the edit cannot be handled bar by bar
+     */
+    private boolean parseBars(int start, int end, int length) {
+        int delta = length - (end - start);
+
+        // The edit lies within the bars first to last, and leaves the
+        // barline of last alone
+        int first = firstEndingAfter(start);
+        int last = firstStartingAfter(end);
+        if (last >= bars.size() || bars.get(first).begin > start) {
+            return false;
+        }
+        Voice voice = null;
+        int position = -1;
+        int count = 0;
+        for (int i = first; i <= last; i++) {
+            BarSpan span = bars.get(i);
+            if (!span.plain) {
+                return false;
+            }
+            if (span.voice == null) {
+                if (span.bar.getElements().size() > 0) {
+                    return false; // in a repeat, or lost
+                }
+                continue;
+            }
+            List<MusicSequence> elements = span.voice.getElements();
+            if (voice == null) {
+                voice = span.voice;
+                position = indexOf(elements, span.bar);
+            } else if (voice != span.voice
+                    || position + count >= elements.size()
+                    || elements.get(position + count) != span.bar) {
+                return false;
+            }
+            count++;
+        }
+        if (voice == null) {
+            return false; // nowhere to put the new bars
+        }
+
+        // Lex the bars on their own, which only works if their first token
+        // does not run into the barline before them
+        int from = bars.get(first).begin;
+        int to = bars.get(last).end + delta;
+        char next = text.charAt(from);
+        if (first > 0 && bars.get(first - 1).end == from
+                && bars.get(first - 1).single
+                && (next == '|' || next == ']' || next == ':')) {
+            return false;
+        }
+        TokenBuffer tokens;
+        try {
+            tokens = lex(text.substring(from, to));
+        } catch (ParseException e) {
+            return false;
+        }
+        int size = tokens.size();
+        for (int i = 0; i < size; i++) {
+            if (!inBar(tokens.getType(i))) {
+                return false;
+            }
+        }
+        if (size == 0 || tokens.getType(size - 1) != Type.BARLINE
+                || tokens.getStart(size - 1) + tokens.getLength(size - 1) != to
+                        - from) {
+            return false;
+        }
+        final List<Bar> closed = new ArrayList<Bar>();
+        MusicBuilder builder = new MusicBuilder() {
+            @Override
+            protected void barClosed(Bar bar) {
+                closed.add(bar);
+            }
+        };
+        try {
+            new Parser(tokens).parse(builder);
+        } catch (ParseException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false; // and the full parse reports it
+        }
+        List<Bar> added = new ArrayList<Bar>();
+        Map<Bar, Voice> voices = new IdentityHashMap<Bar, Voice>();
+        for (Bar bar : closed) {
+            if (bar.getElements().size() > 0) {
+                bar.added();
+                added.add(bar);
+                voices.put(bar, voice);
+            }
+        }
+        List<BarSpan> spans = index(tokens, from, closed, voices);
+        for (BarSpan span : spans) {
+            if (!span.plain) {
+                return false;
+            }
+        }
+
+        // Splice the new bars and their index in
+        List<MusicSequence> elements = voice.getElements();
+        elements.subList(position, position + count).clear();
+        elements.addAll(position, added);
+        bars.subList(first, last + 1).clear();
+        bars.addAll(first, spans);
+        for (int i = first + spans.size(); i < bars.size(); i++) {
+            bars.get(i).begin += delta;
+            bars.get(i).start += delta;
+            bars.get(i).end += delta;
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the bars that the barlines of the tokens close.
+     *         The tokens start at the given offset of the text.
+     */
+    private static List<BarSpan> index(TokenBuffer tokens, int offset,
+            List<Bar> closed, Map<Bar, Voice> voices) {
+        List<BarSpan> spans = new ArrayList<BarSpan>();
+        // A bar starts after a barline, or after a field if its voice had no
+        // bar open; the open bar of a voice carries over a V: field
+        Map<String, Boolean> openVoices = new HashMap<String, Boolean>();
+        String voice = "default";
+        boolean open = false;
+        boolean plain = true;
+        int begin = offset;
+        for (int i = 0; i < tokens.size(); i++) {
+            Type type = tokens.getType(i);
+            if (inBar(type) && type != Type.COMMENT && type != Type.BARLINE) {
+                open = true;
+                continue;
+            }
+            switch (type) {
+            case COMMENT:
+                break;
+            case BARLINE:
+                boolean single = tokens.getLength(i) == 1;
+                Bar bar = closed.get(spans.size());
+                int start = offset + tokens.getStart(i);
+                int end = start + tokens.getLength(i);
+                spans.add(new BarSpan(begin, start, end, single, plain
+                        && single, bar, voices.get(bar)));
+                open = false;
+                plain = true;
+                begin = end;
+                break;
+            case NTH_REPEAT:
+                plain = false;
+                break;
+            default:
+                if (type == Type.FIELD_VOICE) {
+                    openVoices.put(voice, open);
+                    voice = tokens.getText(i);
+                    open = Boolean.TRUE.equals(openVoices.get(voice));
+                }
+                // Fields take up the rest of their line
+                plain = !open;
+                begin = lineEnd(tokens.getSource(), tokens.getStart(i))
+                        + offset;
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * @return whether tokens of the given type can be part of a plain bar
+     */
+    private static boolean inBar(Type type) {
+        switch (type) {
+        case NOTE_LETTER:
+        case OCTAVE:
+        case DIGIT:
+        case FRACTION_BAR:
+        case ACCIDENTAL:
+        case BEGIN_MULTINOTE:
+        case END_MULTINOTE:
+        case TUPLET:
+        case COMMENT:
+        case BARLINE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the index after the newline that ends the line at index
+     */
+    private static int lineEnd(CharSequence input, int index) {
+        while (index < input.length() && input.charAt(index) != '\n') {
+            index++;
+        }
+        return index + 1;
+    }
+
+    private static TokenBuffer lex(CharSequence input) throws ParseException {
+        try {
+            return new Lexer(input).tokenize();
+        } catch (TokenMismatchException e) {
+            throw new ParseException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the index of the first bar that ends after offset, or the
+     *         number of bars
+     */
+    private int firstEndingAfter(int offset) {
+        int low = 0;
+        int high = bars.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bars.get(middle).end <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first bar whose barline starts at or after
+     *         offset, or the number of bars
+     */
+    private int firstStartingAfter(int offset) {
+        int low = 0;
+        int high = bars.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bars.get(middle).start < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int indexOf(List<MusicSequence> elements, Bar bar) {
+        for (int i = 0; i < elements.size(); i++) {
+            if (elements.get(i) == bar) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
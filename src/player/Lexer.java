@@ -1,20 +1,36 @@
 package player;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
- * Musical lexical analyzer. Converts a String to a set of iterable tokens
+ * Musical lexical analyzer. Converts a character sequence to a set of iterable
+ * tokens
  */
 public class Lexer implements Iterable<Lexer.Token> {
 
     /**
      * Token in the stream.
+     * 
+     * Tokens with a fixed text, such as barlines and note letters, are shared
+     * instances. Tokens with a variable text, such as digits, fields and
+     * comments, only refer to the part of the input that holds their text; a
+     * String is only made if {@link #getText()} is called.
      */
     public static class Token {
         final Type type;
-        final String text;
+        private String text;
+        private final CharSequence source;
+        private final int offset;
+        private final int length;
 
         /**
          * Construct a Token
@@ -22,6 +38,9 @@ public class Lexer implements Iterable<Lexer.Token> {
         public Token(Type type, String text) {
             this.type = type;
             this.text = text;
+            this.source = null;
+            this.offset = 0;
+            this.length = (text == null) ? 0 : text.length();
         }
 
         /**
@@ -31,17 +50,91 @@ public class Lexer implements Iterable<Lexer.Token> {
             this(type, null);
         }
 
+        /**
+         * Construct a Token whose text is the given part of an input that
+         * will not change.
+         */
+        Token(Type type, CharSequence source, int start, int end) {
+            this.type = type;
+            this.text = null;
+            this.source = source;
+            this.offset = start;
+            this.length = end - start;
+        }
+
+        /**
+         * @return the type of this token
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the text of this token, or null if it has none
+         */
+        public String getText() {
+            if (text == null && source != null) {
+                text = source.subSequence(offset, offset + length).toString();
+            }
+            return text;
+        }
+
+        /**
+         * @return the number of characters in the text of this token
+         */
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return the character at the given index of the text of this token
+         */
+        public char charAt(int index) {
+            if (text != null) {
+                return text.charAt(index);
+            }
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index " + index
+                        + " out of bounds for length " + length);
+            }
+            return source.charAt(offset + index);
+        }
+
+        /**
+         * Read the text of this token as a decimal number, without making a
+         * String of it.
+         * 
+         * @return the value of the text of this token
+         * @throws NumberFormatException
+         *             if the text is not a number
+         */
+        public int intValue() {
+            if (length == 0 || length > 9) {
+                return Integer.parseInt(getText());
+            }
+            int value = 0;
+            for (int i = 0; i < length; i++) {
+                int digit = charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return Integer.parseInt(getText());
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
         /**
          * Return a string version of a token
          */
         public String toString() {
-            return "Token[type=" + type + ",text=" + text + "]";
+            return "Token[type=" + type + ",text=" + getText() + "]";
         }
 
         @Override
         public int hashCode() {
             final int prime = 31;
             int result = 1;
+            String text = getText();
             result = prime * result + ((text == null) ? 0 : text.hashCode());
             result = prime * result + ((type == null) ? 0 : type.hashCode());
             return result;
@@ -60,10 +153,11 @@ public class Lexer implements Iterable<Lexer.Token> {
             if (getClass() != obj.getClass())
                 return false;
             Token other = (Token) obj;
+            String text = getText();
             if (text == null) {
-                if (other.text != null)
+                if (other.getText() != null)
                     return false;
-            } else if (!text.equals(other.text))
+            } else if (!text.equals(other.getText()))
                 return false;
             if (type != other.type)
                 return false;
@@ -71,6 +165,48 @@ public class Lexer implements Iterable<Lexer.Token> {
         }
     }
 
+    /**
+     * Shared tokens for all of the texts that are fixed by the grammar.
+     */
+    private static final Token EOF_TOKEN = new Token(Type.EOF);
+    private static final Token BEGIN_MULTINOTE_TOKEN = new Token(
+            Type.BEGIN_MULTINOTE);
+    private static final Token END_MULTINOTE_TOKEN = new Token(
+            Type.END_MULTINOTE);
+    private static final Token FRACTION_BAR_TOKEN = new Token(
+            Type.FRACTION_BAR);
+    private static final Token BARLINE_TOKEN = new Token(Type.BARLINE, "|");
+    private static final Token DOUBLE_BARLINE_TOKEN = new Token(Type.BARLINE,
+            "||");
+    private static final Token BEGIN_BARLINE_TOKEN = new Token(Type.BARLINE,
+            "[|");
+    private static final Token END_BARLINE_TOKEN = new Token(Type.BARLINE,
+            "|]");
+    private static final Token BEGIN_REPEAT_TOKEN = new Token(Type.BARLINE,
+            "|:");
+    private static final Token END_REPEAT_TOKEN = new Token(Type.BARLINE,
+            ":|");
+    private static final Token FIRST_REPEAT_TOKEN = new Token(
+            Type.NTH_REPEAT, "[1");
+    private static final Token SECOND_REPEAT_TOKEN = new Token(
+            Type.NTH_REPEAT, "[2");
+    private static final Token FLAT_TOKEN = new Token(Type.ACCIDENTAL, "_");
+    private static final Token DOUBLE_FLAT_TOKEN = new Token(Type.ACCIDENTAL,
+            "__");
+    private static final Token SHARP_TOKEN = new Token(Type.ACCIDENTAL, "^");
+    private static final Token DOUBLE_SHARP_TOKEN = new Token(
+            Type.ACCIDENTAL, "^^");
+    private static final Token NEUTRAL_TOKEN = new Token(Type.ACCIDENTAL, "=");
+    private static final Token OCTAVE_UP_TOKEN = new Token(Type.OCTAVE, "'");
+    private static final Token OCTAVE_DOWN_TOKEN = new Token(Type.OCTAVE, ",");
+    private static final Token[] NOTE_TOKENS = new Token[128];
+
+    static {
+        for (char c : "ABCDEFGabcdefgz".toCharArray()) {
+            NOTE_TOKENS[c] = new Token(Type.NOTE_LETTER, String.valueOf(c));
+        }
+    }
+
     /**
      * New exception that will be thrown in Lexer
      */
@@ -81,7 +217,25 @@ public class Lexer implements Iterable<Lexer.Token> {
         }
     }
 
-    private StringBuffer myinput = null;
+    /**
+     * Size of the refillable window used when lexing from a Reader. At least
+     * half of it is kept filled ahead of the cursor, so every token other
+     * than a field or comment must fit into half a window.
+     */
+    private static final int WINDOW_SIZE = 8192;
+    private static final int LOOKAHEAD = WINDOW_SIZE / 2;
+
+    /**
+     * Inputs of at least PARALLEL_THRESHOLD characters are lexed in bulk by
+     * several threads, each taking a chunk of about CHUNK_SIZE characters
+     * that ends at a newline.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 20;
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final CharSequence myinput;
+    private final Reader reader;
+    private boolean iterated = false;
 
     /**
      * 
@@ -92,405 +246,760 @@ public class Lexer implements Iterable<Lexer.Token> {
      * 
      * method next() returns the next token in the sequence
      * 
-     * @param String
+     * @param input
      *            Input (not modified) must consist only of digits, decimal
      *            points *,+,-,/,(,); alphabet character, colons, and percent
-     *            signs, carets, underscores, and whitespaces.
+     *            signs, carets, underscores, and whitespaces. The input is
+     *            read in place, so it must not change while it is being
+     *            lexed.
      * 
      */
-    public Lexer(String input) {
-        myinput = new StringBuffer(input);
+    public Lexer(CharSequence input) {
+        myinput = input;
+        reader = null;
+    }
 
+    /**
+     * Construct a Lexer that reads directly out of the given array, without
+     * copying it.
+     * 
+     * @param input
+     *            Input characters (not modified), see
+     *            {@link #Lexer(CharSequence)}
+     */
+    public Lexer(char[] input) {
+        this(CharBuffer.wrap(input));
     }
 
     /**
-     * Regex for Tokens
+     * Construct a Lexer that streams its input from the given Reader through
+     * a fixed-size window, so the memory used for lexing does not depend on
+     * the length of the input. A streaming Lexer can only be iterated once.
+     * The Reader is not closed by the Lexer.
+     * 
+     * @param input
+     *            Reader to tokenize, see {@link #Lexer(CharSequence)}
      */
-    private final Pattern NOTE = Pattern.compile("[A-Ga-gz]");
-    private final Pattern DIGIT = Pattern.compile("^\\d+");
-    private final Pattern FLAT = Pattern.compile("_+");
-    private final Pattern NEUTRAL = Pattern.compile("=+");
-    private final Pattern SHARP = Pattern.compile("\\^+");
-    private final Pattern OCTAVEUP = Pattern.compile("'+");
-    private final Pattern OCTAVEDOWN = Pattern.compile(",+");
+    public Lexer(Reader input) {
+        myinput = null;
+        reader = input;
+    }
+
+    /**
+     * Construct a Lexer that streams its UTF-8 encoded input from the given
+     * channel, see {@link #Lexer(Reader)}.
+     * 
+     * @param input
+     *            Channel to tokenize
+     */
+    public Lexer(ReadableByteChannel input) {
+        this(Channels.newReader(input, "UTF-8"));
+    }
+
+    /**
+     * Character classes. Every character of the input is mapped to one of
+     * these before it is fed to the state machine below.
+     */
+    private static final int C_OTHER = 0, C_SPACE = 1, C_NOTE = 2,
+            C_NOTE_OR_FIELD = 3, C_FIELD = 4, C_DIGIT = 5, C_ONE_OR_TWO = 6,
+            C_FLAT = 7, C_SHARP = 8, C_NEUTRAL = 9, C_UP = 10, C_DOWN = 11,
+            C_BAR = 12, C_COLON = 13, C_OPEN_BRACKET = 14,
+            C_CLOSE_BRACKET = 15, C_SLASH = 16, C_OPEN_PAREN = 17,
+            C_PERCENT = 18;
+    private static final int NUM_CLASSES = 19;
+
+    /**
+     * States of the tokenizer. NONE marks a missing transition; the token
+     * ends at the character that has no transition out of the current state.
+     */
+    private static final int NONE = 0, START = 1, NOTE = 2,
+            NOTE_OR_FIELD = 3, FIELD_LETTER = 4, FIELD = 5, DIGITS = 6,
+            FLAT = 7, DOUBLE_FLAT = 8, SHARP = 9, DOUBLE_SHARP = 10,
+            NEUTRAL = 11, OCTAVE_UP = 12, OCTAVE_DOWN = 13, BAR = 14,
+            LONG_BAR = 15, COLON = 16, OPEN_BRACKET = 17, NTH_REPEAT = 18,
+            CLOSE_BRACKET = 19, SLASH = 20, OPEN_PAREN = 21, TUPLET = 22,
+            COMMENT = 23, TOO_FLAT = 24, TOO_SHARP = 25, UP_AND_DOWN = 26;
+    private static final int NUM_STATES = 27;
+
+    /**
+     * Class of every ASCII character; everything else is C_OTHER.
+     */
+    private static final byte[] CLASSES = new byte[128];
+    /**
+     * TRANSITIONS[state * NUM_CLASSES + class] is the state that the
+     * tokenizer moves to on a character of the given class.
+     */
+    private static final byte[] TRANSITIONS = new byte[NUM_STATES
+            * NUM_CLASSES];
+    /**
+     * Type of the token that ends in each state, or null if the token may
+     * not end there, in which case ERRORS holds the complaint.
+     */
+    private static final Type[] ACCEPTS = new Type[NUM_STATES];
+    private static final String[] ERRORS = new String[NUM_STATES];
+
+    static {
+        classify(" \t\r\n", C_SPACE);
+        classify("ABDEFGabcdefgz", C_NOTE);
+        classify("C", C_NOTE_OR_FIELD);
+        classify("XTKLMQV", C_FIELD);
+        classify("0123456789", C_DIGIT);
+        classify("12", C_ONE_OR_TWO);
+        classify("_", C_FLAT);
+        classify("^", C_SHARP);
+        classify("=", C_NEUTRAL);
+        classify("'", C_UP);
+        classify(",", C_DOWN);
+        classify("|", C_BAR);
+        classify(":", C_COLON);
+        classify("[", C_OPEN_BRACKET);
+        classify("]", C_CLOSE_BRACKET);
+        classify("/", C_SLASH);
+        classify("(", C_OPEN_PAREN);
+        classify("%", C_PERCENT);
+
+        // Notes and header fields; the text of a field is the rest of the
+        // line, which is read separately
+        transition(START, C_NOTE, NOTE);
+        transition(START, C_NOTE_OR_FIELD, NOTE_OR_FIELD);
+        transition(START, C_FIELD, FIELD_LETTER);
+        transition(NOTE_OR_FIELD, C_COLON, FIELD);
+        transition(FIELD_LETTER, C_COLON, FIELD);
+        accept(NOTE, Type.NOTE_LETTER);
+        accept(NOTE_OR_FIELD, Type.NOTE_LETTER);
+        accept(FIELD, Type.FIELD_TITLE); // actual type depends on the letter
+
+        // Digits
+        transition(START, C_DIGIT, DIGITS);
+        transition(START, C_ONE_OR_TWO, DIGITS);
+        transition(DIGITS, C_DIGIT, DIGITS);
+        transition(DIGITS, C_ONE_OR_TWO, DIGITS);
+        accept(DIGITS, Type.DIGIT);
+
+        // Accidentals: at most two sharps or flats, but any number of
+        // neutrals
+        transition(START, C_FLAT, FLAT);
+        transition(FLAT, C_FLAT, DOUBLE_FLAT);
+        transition(DOUBLE_FLAT, C_FLAT, TOO_FLAT);
+        transition(TOO_FLAT, C_FLAT, TOO_FLAT);
+        transition(START, C_SHARP, SHARP);
+        transition(SHARP, C_SHARP, DOUBLE_SHARP);
+        transition(DOUBLE_SHARP, C_SHARP, TOO_SHARP);
+        transition(TOO_SHARP, C_SHARP, TOO_SHARP);
+        transition(START, C_NEUTRAL, NEUTRAL);
+        transition(NEUTRAL, C_NEUTRAL, NEUTRAL);
+        accept(FLAT, Type.ACCIDENTAL);
+        accept(DOUBLE_FLAT, Type.ACCIDENTAL);
+        accept(SHARP, Type.ACCIDENTAL);
+        accept(DOUBLE_SHARP, Type.ACCIDENTAL);
+        accept(NEUTRAL, Type.ACCIDENTAL);
+        reject(TOO_FLAT, "Note is way too flat!");
+        reject(TOO_SHARP, "Note is way too sharp!");
+
+        // Octaves: one direction only
+        transition(START, C_UP, OCTAVE_UP);
+        transition(OCTAVE_UP, C_UP, OCTAVE_UP);
+        transition(OCTAVE_UP, C_DOWN, UP_AND_DOWN);
+        transition(START, C_DOWN, OCTAVE_DOWN);
+        transition(OCTAVE_DOWN, C_DOWN, OCTAVE_DOWN);
+        transition(OCTAVE_DOWN, C_UP, UP_AND_DOWN);
+        accept(OCTAVE_UP, Type.OCTAVE);
+        accept(OCTAVE_DOWN, Type.OCTAVE);
+        reject(UP_AND_DOWN, "Cannot take one note both an octave up and down ");
+
+        // Barlines: | || |] |: :| [| and the nth repeats [1 [2
+        transition(START, C_BAR, BAR);
+        transition(BAR, C_BAR, LONG_BAR);
+        transition(BAR, C_CLOSE_BRACKET, LONG_BAR);
+        transition(BAR, C_COLON, LONG_BAR);
+        transition(START, C_COLON, COLON);
+        transition(COLON, C_BAR, LONG_BAR);
+        transition(START, C_OPEN_BRACKET, OPEN_BRACKET);
+        transition(OPEN_BRACKET, C_BAR, LONG_BAR);
+        transition(OPEN_BRACKET, C_ONE_OR_TWO, NTH_REPEAT);
+        accept(BAR, Type.BARLINE);
+        accept(LONG_BAR, Type.BARLINE);
+        accept(NTH_REPEAT, Type.NTH_REPEAT);
+
+        // Chords, fractions and tuplets
+        transition(START, C_CLOSE_BRACKET, CLOSE_BRACKET);
+        transition(START, C_SLASH, SLASH);
+        transition(START, C_OPEN_PAREN, OPEN_PAREN);
+        transition(OPEN_PAREN, C_DIGIT, TUPLET);
+        transition(OPEN_PAREN, C_ONE_OR_TWO, TUPLET);
+        transition(TUPLET, C_DIGIT, TUPLET);
+        transition(TUPLET, C_ONE_OR_TWO, TUPLET);
+        accept(OPEN_BRACKET, Type.BEGIN_MULTINOTE);
+        accept(CLOSE_BRACKET, Type.END_MULTINOTE);
+        accept(SLASH, Type.FRACTION_BAR);
+        accept(TUPLET, Type.TUPLET);
+        reject(OPEN_PAREN, "Bad tuplet token! ");
+
+        // Comments; like fields, the text is the rest of the line
+        transition(START, C_PERCENT, COMMENT);
+        accept(COMMENT, Type.COMMENT);
+    }
+
+    private static void classify(String chars, int c) {
+        for (int i = 0; i < chars.length(); i++) {
+            CLASSES[chars.charAt(i)] = (byte) c;
+        }
+    }
+
+    private static void transition(int from, int c, int to) {
+        TRANSITIONS[from * NUM_CLASSES + c] = (byte) to;
+    }
+
+    private static void accept(int state, Type type) {
+        ACCEPTS[state] = type;
+    }
+
+    private static void reject(int state, String error) {
+        ERRORS[state] = error;
+    }
+
+    private static int classOf(char c) {
+        return c < 128 ? CLASSES[c] : C_OTHER;
+    }
+
+    /**
+     * @return the type of the field whose line starts with the given letter
+     */
+    private static Type fieldType(char letter) {
+        switch (letter) {
+        case 'X':
+            return Type.FIELD_INDEX_NUMBER;
+        case 'T':
+            return Type.FIELD_TITLE;
+        case 'C':
+            return Type.FIELD_COMPOSER_NAME;
+        case 'K':
+            return Type.FIELD_KEY;
+        case 'L':
+            return Type.FIELD_DEFAULT_LENGTH;
+        case 'M':
+            return Type.FIELD_METER;
+        case 'Q':
+            return Type.FIELD_TEMPO;
+        default:
+            return Type.FIELD_VOICE;
+        }
+    }
 
     /**
      * Special inner class to implement the Iterator interface, allowing the
      * Parser to not be Lexer-specific.
      * 
+     * The iterator walks the (unmodified) input with an integer cursor, so
+     * consuming a token never copies or shifts the remaining input. Every
+     * token is recognized in a single pass over its characters, by running
+     * them through the transition table until there is no transition left.
+     * 
+     * When lexing from a Reader, the input is a window over a fixed-size
+     * buffer instead. Whenever less than LOOKAHEAD characters are left ahead
+     * of the cursor, the unconsumed characters are moved to the front of the
+     * buffer and the rest of it is refilled from the Reader.
      */
     private class LexerIterator implements Iterator<Lexer.Token> {
 
+        private final CharSequence input;
+        private final char[] window;
+        private int pos = 0;
+        private int length;
+        private boolean eof;
+        private int textStart;
+        private int textEnd;
+
+        LexerIterator() {
+            if (reader == null) {
+                input = myinput;
+                window = null;
+                length = myinput.length();
+                eof = true;
+            } else {
+                window = new char[WINDOW_SIZE];
+                input = CharBuffer.wrap(window);
+                length = 0;
+                eof = false;
+            }
+        }
+
+        /**
+         * Construct an iterator over the characters of the in-memory input
+         * between start and end.
+         */
+        LexerIterator(int start, int end) {
+            input = myinput;
+            window = null;
+            pos = start;
+            length = end;
+            eof = true;
+        }
+
         /**
          * method hasNext() returns a boolean true if there is another token in
          * the input and false if there are no more tokens
          */
         public boolean hasNext() {
-
-            while (myinput.length() > 0
-                    && (myinput.charAt(0) == '\t' || myinput.charAt(0) == '\n'
-                            || myinput.charAt(0) == ' ' || myinput.charAt(0) == '\r')) {
-
-                myinput.deleteCharAt(0);
-
-            }
-
-            if (myinput != null && myinput.length() > 0) {
-                return true;
-            } else {
-                return false;
-            }
+            skipWhitespace();
+            return pos < length;
         }
 
         /**
-         * Created a StringBuffer myinput copy of Input to modify at each call
-         * of next(), the next relevant substring in sequence is removed from
-         * myinput and a corresponding token is returned. the substring may
-         * consist of 1 or more characters that form the regex of a type. Note
-         * that calling next() will modify the StringBuffer and the tokens can
-         * then be returned in an iterator
+         * At each call of next(), the cursor is moved past the next relevant
+         * substring in sequence and a corresponding token is returned. the
+         * substring may consist of 1 or more characters that form a token of
+         * a type.
          */
         public Token next() {
+            /** Remove whitespace and other leading junk. */
+            skipWhitespace();
+            fill(LOOKAHEAD);
             /** Is there any data to process? */
-            if (myinput.length() == 0) {
-                return new Token(Type.EOF, null);
+            if (pos >= length) {
+                return EOF_TOKEN;
             }
-            /** Remove whitespace and other leading junk. */
-            final int LOOK_AT = 0;
-            while (true) {
-                switch (myinput.charAt(LOOK_AT)) {
-                case '\t':
-                case ' ':
-                case '\n':
-                case '\r':
-                    myinput.deleteCharAt(LOOK_AT);
-                    continue;
+
+            int start = pos;
+            int state = recognize();
+            Type type = ACCEPTS[state];
+            switch (state) {
+            case FIELD:
+                type = fieldType(input.charAt(start));
+                if (window != null && !lineInWindow()) {
+                    String field = restOfLine();
+                    int nocomment = field.indexOf("%");
+                    if (nocomment != -1) {
+                        field = field.substring(0, nocomment);
+                    }
+                    return new Token(type, field.trim());
                 }
-                break;
-            }
-            /**
-             * Check once more, after we deleted trailing junk.
-             */
-            if (myinput.length() == 0) {
-                return new Token(Type.EOF, null);
+                scanLine(true);
+                return slice(type, textStart, textEnd);
+            case COMMENT:
+                if (window != null && !lineInWindow()) {
+                    return new Token(type, restOfLine());
+                }
+                scanLine(false);
+                return slice(type, textStart, textEnd);
+            case NOTE:
+            case NOTE_OR_FIELD:
+                return NOTE_TOKENS[input.charAt(start)];
+            case BAR:
+                return BARLINE_TOKEN;
+            case LONG_BAR:
+                return getLongBarline(input.charAt(start),
+                        input.charAt(start + 1));
+            case NTH_REPEAT:
+                return input.charAt(start + 1) == '1' ? FIRST_REPEAT_TOKEN
+                        : SECOND_REPEAT_TOKEN;
+            case FLAT:
+                return FLAT_TOKEN;
+            case DOUBLE_FLAT:
+                return DOUBLE_FLAT_TOKEN;
+            case SHARP:
+                return SHARP_TOKEN;
+            case DOUBLE_SHARP:
+                return DOUBLE_SHARP_TOKEN;
+            case NEUTRAL:
+                return (pos - start == 1) ? NEUTRAL_TOKEN : slice(type, start,
+                        pos);
+            case OCTAVE_UP:
+                return (pos - start == 1) ? OCTAVE_UP_TOKEN : slice(type,
+                        start, pos);
+            case OCTAVE_DOWN:
+                return (pos - start == 1) ? OCTAVE_DOWN_TOKEN : slice(type,
+                        start, pos);
+            case OPEN_BRACKET:
+                return BEGIN_MULTINOTE_TOKEN;
+            case CLOSE_BRACKET:
+                return END_MULTINOTE_TOKEN;
+            case SLASH:
+                return FRACTION_BAR_TOKEN;
+            case TUPLET:
+                return slice(type, start + 1, pos);
+            default:
+                return slice(type, start, pos);
             }
+        }
 
-            /**
-             * use helper methods to check if next Token is of the following
-             * types: field, barline, tuplet, flat, sharp, octaveup, octavedown
-             */
-            Token result = getField();
-            if (result != null) {
-                return result;
-            }
-            result = getBarline();
-            if (result != null) {
-                return result;
+        /**
+         * Lex all of the remaining input into the given buffer.
+         */
+        void tokenize(TokenBuffer buffer) {
+            while (true) {
+                skipWhitespace();
+                if (pos >= length) {
+                    return;
+                }
+                int start = pos;
+                int state = recognize();
+                Type type = ACCEPTS[state];
+                switch (state) {
+                case FIELD:
+                    scanLine(true);
+                    buffer.add(fieldType(input.charAt(start)), textStart,
+                            textEnd, 0);
+                    break;
+                case COMMENT:
+                    scanLine(false);
+                    buffer.add(type, textStart, textEnd, 0);
+                    break;
+                case DIGITS:
+                    buffer.add(type, start, pos, valueOf(start, pos));
+                    break;
+                case TUPLET:
+                    buffer.add(type, start + 1, pos, valueOf(start + 1, pos));
+                    break;
+                default:
+                    buffer.add(type, start, pos, 0);
+                }
             }
+        }
 
-            result = getTuplet();
-            if (result != null) {
-                return result;
-            }
-            result = getFlat();
-            if (result != null) {
-                return result;
-            }
-            result = getSharp();
-            if (result != null) {
-                return result;
+        /**
+         * Run the characters at the cursor through the transition table,
+         * until there is no transition left, and move the cursor past them.
+         * 
+         * @return The state in which the token ended, which accepts it
+         * @throws TokenMismatchException
+         *             if the characters do not form a token
+         */
+        private int recognize() {
+            int state = START;
+            while (pos < length) {
+                int next = TRANSITIONS[state * NUM_CLASSES
+                        + classOf(input.charAt(pos))];
+                if (next == NONE) {
+                    break;
+                }
+                state = next;
+                pos++;
             }
-            result = getOctaveUp();
-            if (result != null) {
-                return result;
+            if (ACCEPTS[state] == null) {
+                String error = ERRORS[state];
+                if (error == null) {
+                    error = "Bad tokens check your grammar and syntax! ";
+                }
+                if (state == UP_AND_DOWN) {
+                    pos--; // point at the conflicting octave shift
+                }
+                throw new TokenMismatchException(error + rest());
             }
-            result = getOctaveDown();
-            if (result != null) {
-                return result;
+            if (pos == length && !eof) {
+                throw new TokenMismatchException("Token too long! " + rest());
             }
+            return state;
+        }
 
-            if (myinput.charAt(0) == '|') {
-                myinput.deleteCharAt(0);
-                return new Token(Type.BARLINE, "|");
-            }
-            if (myinput.charAt(0) == '%') {
-                myinput.deleteCharAt(0);
-                int newLinePos = myinput.indexOf("\n");
-                result = new Token(Type.COMMENT, myinput.substring(0,
-                        newLinePos));
-                myinput.delete(0, newLinePos);
-                return result;
+        /**
+         * Make a token for the given part of the input. The token refers to
+         * the input directly, unless the input is a window that will be
+         * refilled.
+         */
+        private Token slice(Type type, int start, int end) {
+            if (window != null) {
+                return new Token(type, text(start, end));
             }
+            return new Token(type, input, start, end);
+        }
 
-            Matcher m = NOTE.matcher(myinput.substring(0, 1));
-            if (m.matches()) {
-                String a1 = myinput.substring(0, 1);
-                myinput.deleteCharAt(0);
-
-                return new Token(Type.NOTE_LETTER, a1);
+        /**
+         * @return the shared token for the barline that consists of the given
+         *         two characters
+         */
+        private Token getLongBarline(char first, char second) {
+            switch (first) {
+            case ':':
+                return END_REPEAT_TOKEN;
+            case '[':
+                return BEGIN_BARLINE_TOKEN;
+            default:
+                switch (second) {
+                case '|':
+                    return DOUBLE_BARLINE_TOKEN;
+                case ']':
+                    return END_BARLINE_TOKEN;
+                default:
+                    return BEGIN_REPEAT_TOKEN;
+                }
             }
+        }
 
-            result = getDigit();
-            if (result != null) {
-                return result;
-            }
-            result = getNeutral();
-            if (result != null) {
-                return result;
-            }
+        /**
+         * @return true iff the current line ends inside the window
+         */
+        private boolean lineInWindow() {
+            return indexOfNewLine(pos) < length || eof;
+        }
 
-            if (myinput.charAt(0) == '/') {
-                myinput.deleteCharAt(0);
-                return new Token(Type.FRACTION_BAR);
-            }
-            if (myinput.charAt(0) == '[') {
-                myinput.deleteCharAt(0);
-                return new Token(Type.BEGIN_MULTINOTE);
-            }
-            if (myinput.charAt(0) == ']') {
-                myinput.deleteCharAt(0);
-                return new Token(Type.END_MULTINOTE);
+        /**
+         * Move the cursor to the end of the current line, and set textStart
+         * and textEnd to the text of the line. The text of a field does not
+         * include a trailing comment or surrounding whitespace.
+         */
+        private void scanLine(boolean field) {
+            int newLinePos = indexOfNewLine(pos);
+            int start = pos;
+            int end = newLinePos;
+            if (field) {
+                for (int i = start; i < end; i++) {
+                    if (input.charAt(i) == '%') {
+                        end = i;
+                        break;
+                    }
+                }
+                while (start < end && input.charAt(start) <= ' ') {
+                    start++;
+                }
+                while (end > start && input.charAt(end - 1) <= ' ') {
+                    end--;
+                }
             }
+            textStart = start;
+            textEnd = end;
+            pos = newLinePos;
+        }
 
-            throw new TokenMismatchException(
-                    "Bad tokens check your grammar and syntax! " + myinput);
-
+        /**
+         * @return the decimal value of the digits between start and end
+         * @throws TokenMismatchException
+         *             if the value does not fit into an int
+         */
+        private int valueOf(int start, int end) {
+            long value = 0;
+            for (int i = start; i < end; i++) {
+                value = value * 10 + (input.charAt(i) - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw new TokenMismatchException("Number is too large! "
+                            + text(start, end));
+                }
+            }
+            return (int) value;
         }
 
         @Override
         public void remove() {
             // Do nothing?
         }
-    }
 
-    /**
-     * Helper method used to convert an array of Strings to appropriate Tokens.
-     * 
-     * @param baseLen
-     *            Minimal length of the string
-     * @param string
-     *            Array of String to convert
-     * @param stringType
-     *            Array of Type to convert to
-     * @return A token
-     */
-    private Token get(int baseLen, String[] string, Type[] stringType) {
-        if (myinput.length() < baseLen) {
-            return null;
-        }
-        assert string.length == stringType.length;
-        Token result = null;
-        if (myinput.length() < baseLen) {
-            return null;
-        }
-        for (int i = 0; (i < string.length); i++) {
-            String extract = myinput.substring(0, 2);
-            if (string[i].equals(extract)) {
-                result = new Token(stringType[i], extract);
-                myinput.delete(0, 2);
-                return result;
+        /**
+         * Move the cursor past any whitespace.
+         */
+        private void skipWhitespace() {
+            while (fill(1) && classOf(input.charAt(pos)) == C_SPACE) {
+                pos++;
             }
         }
-        return null;
-    }
 
-    /**
-     * helper method to check if the next token is a field token modifies
-     * myinput returns the next token if next token is a field token or null if
-     * it is not
-     */
-    private Token getField() {
-        String[] fields = { "X:", "T:", "C:", "K:", "L:", "M:", "Q:", "V:" };
-        Type[] fieldType = { Type.FIELD_INDEX_NUMBER, Type.FIELD_TITLE,
-                Type.FIELD_COMPOSER_NAME, Type.FIELD_KEY,
-                Type.FIELD_DEFAULT_LENGTH, Type.FIELD_METER, Type.FIELD_TEMPO,
-                Type.FIELD_VOICE };
-        assert fields.length == fieldType.length;
-        Token result = null;
-        if (myinput.length() < 2) {
-            return null;
-        }
-        for (int i = 0; (i < fields.length); i++) {
-            if (fields[i].equals(myinput.substring(0, 2))) {
-                myinput.delete(0, 2);
-                int newLinePos = myinput.indexOf("\n");
-                String field = myinput.substring(0, newLinePos);
-                int nocomment = field.indexOf("%");
-                if (nocomment != -1) {
-                    result = new Token(fieldType[i], field.substring(0,
-                            nocomment).trim());
-                } else {
-                    result = new Token(fieldType[i], field.trim());
+        /**
+         * Make sure that at least n characters are available ahead of the
+         * cursor, refilling the window from the Reader if necessary.
+         * 
+         * @return false iff the input ends before n more characters
+         */
+        private boolean fill(int n) {
+            if (length - pos >= n) {
+                return true;
+            }
+            if (eof) {
+                return false;
+            }
+            System.arraycopy(window, pos, window, 0, length - pos);
+            length -= pos;
+            pos = 0;
+            try {
+                while (length < window.length) {
+                    int read = reader.read(window, length, window.length
+                            - length);
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    length += read;
                 }
-                myinput.delete(0, newLinePos);
-                return result;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read lexer input", e);
             }
+            return length - pos >= n;
         }
-        return null;
-    }
 
-    /**
-     * helper method to check if the next token is a Barline token modifies
-     * myinput returns the next token if next token is a Barline token or null
-     * if it is not
-     */
-    private Token getBarline() {
-        String[] barlines = { "||", "[|", "|]", ":|", "|:", "[1", "[2" };
-        Type[] barlineTypes = { Type.BARLINE, Type.BARLINE, Type.BARLINE,
-                Type.BARLINE, Type.BARLINE, Type.NTH_REPEAT, Type.NTH_REPEAT };
-        return get(2, barlines, barlineTypes);
-    }
+        /**
+         * Consume the rest of the current line, refilling the window as often
+         * as needed. The newline itself is left in place.
+         * 
+         * @return the text up to the next newline or the end of the input
+         */
+        private String restOfLine() {
+            int newLinePos = indexOfNewLine(pos);
+            if (newLinePos < length || eof) {
+                String line = text(pos, newLinePos);
+                pos = newLinePos;
+                return line;
+            }
+            StringBuilder line = new StringBuilder();
+            do {
+                newLinePos = indexOfNewLine(pos);
+                line.append(input, pos, newLinePos);
+                pos = newLinePos;
+            } while (pos == length && fill(1));
+            return line.toString();
+        }
 
-    /**
-     * helper method to check if the next token is a Tuplet token modifies
-     * myinput returns the next token if next token is a Tuplet token or null if
-     * it is not
-     */
-    private Token getTuplet() {
-        if (myinput.length() < 1) {
-            return null;
-        }
-        if (myinput.charAt(0) == '(') {
-            myinput.deleteCharAt(0);
-            Token digit = getDigit();
-            if (digit == null) {
-                throw new TokenMismatchException("Bad tuplet token! " + myinput);
+        /**
+         * @return the position of the next newline at or after from, or the
+         *         end of the input if there is none
+         */
+        private int indexOfNewLine(int from) {
+            for (int i = from; i < length; i++) {
+                if (input.charAt(i) == '\n') {
+                    return i;
+                }
             }
-            return new Token(Type.TUPLET, digit.text);
+            return length;
         }
-        return null;
-    }
 
-    /**
-     * helper method to check if the next token is a Digit token modifies
-     * myinput returns the next token if next token is a Digit token or null if
-     * it is not
-     */
+        /**
+         * @return the text of the input between start and end
+         */
+        private String text(int start, int end) {
+            return input.subSequence(start, end).toString();
+        }
 
-    private Token getDigit() {
-        Matcher n = DIGIT.matcher(myinput.toString());
-        String a = "";
-        if (n.lookingAt()) {
-            assert 0 == n.start();
-            int end = n.end();
-            a = myinput.substring(0, end);
-            myinput.delete(0, end);
-            return new Token(Type.DIGIT, a);
-        }
-        return null;
+        /**
+         * @return the unconsumed input, used for error messages
+         */
+        private String rest() {
+            return text(pos, (window == null) ? input.length() : length);
+        }
     }
 
     /**
-     * helper method to check if the next token is a Sharp token modifies
-     * myinput returns the next token if next token is a Sharp token or null if
-     * it is not
+     * Lex the whole input at once, on a fork-join pool with a thread for every
+     * processor if the input is large enough to be lexed in parallel.
+     * 
+     * @see #tokenize(ForkJoinPool)
      */
-    private Token getSharp() {
-        Matcher n = SHARP.matcher(myinput.toString());
-        String a = "";
-        if (n.lookingAt()) {
-            assert 0 == n.start();
-            int end = n.end();
-            a = myinput.substring(0, end);
-            myinput.delete(0, end);
-            if (a.length() > 2) {
-                throw new TokenMismatchException("Note is way too sharp!"
-                        + myinput);
-            }
-            return new Token(Type.ACCIDENTAL, a);
+    public TokenBuffer tokenize() {
+        if (reader != null || myinput.length() < PARALLEL_THRESHOLD) {
+            return tokenize(null);
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return tokenize(pool);
+        } finally {
+            pool.shutdown();
         }
-        return null;
     }
 
     /**
-     * helper method to check if the next token is a flat token modifies myinput
-     * returns the next token if next token is a flat token or null if it is not
+     * Lex the whole input at once into a buffer of primitive arrays, instead
+     * of producing one Token at a time. Large inputs are split into chunks at
+     * newlines, which are lexed in parallel on the given pool.
+     * 
+     * @param pool
+     *            Lexes the chunks of a large input; it is not shut down. If
+     *            null, the input is lexed by the calling thread.
+     * @return The tokens of the input, without a trailing EOF
+     * @throws TokenMismatchException
+     *             if the input contains bad tokens
+     * @throws UnsupportedOperationException
+     *             if this Lexer streams its input from a Reader
      */
-    private Token getFlat() {
-        Matcher n = FLAT.matcher(myinput.toString());
-        String a = "";
-        if (n.lookingAt()) {
-            assert 0 == n.start();
-            int end = n.end();
-            a = myinput.substring(0, end);
-            myinput.delete(0, end);
-            if (a.length() > 2) {
-                throw new TokenMismatchException("Note is way too flat!"
-                        + myinput);
-            }
-            return new Token(Type.ACCIDENTAL, a);
+    public TokenBuffer tokenize(ForkJoinPool pool) {
+        if (reader != null) {
+            throw new UnsupportedOperationException(
+                    "Only in-memory input can be lexed in bulk");
         }
-        return null;
+        if (pool == null || myinput.length() < PARALLEL_THRESHOLD) {
+            return new ChunkTask(0, myinput.length()).compute();
+        }
+        return pool.invoke(new SplitTask());
     }
 
     /**
-     * helper method to check if the next token is a octaveup token modifies
-     * myinput returns the next token if next token is a octaveup token or null
-     * if it is not
+     * Splits the in-memory input into chunks, lexes them at the same time and
+     * joins their buffers. It forks the chunks, so it must run in a pool.
      */
-    private Token getOctaveUp() {
-        Matcher n = OCTAVEUP.matcher(myinput.toString());
-        String a = "";
-        if (n.lookingAt()) {
-            assert 0 == n.start();
-            int end = n.end();
-            a = myinput.substring(0, end);
-
-            myinput.delete(0, end);
-
-            if (myinput.length() > 0 && (myinput.substring(0, 1).equals(","))) {
-                System.out.println("bad");
-                throw new TokenMismatchException(
-                        "Cannot take one note both an octave up and down "
-                                + myinput);
+    private class SplitTask extends RecursiveTask<TokenBuffer> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected TokenBuffer compute() {
+            // No token spans a newline, and comments and fields end at one,
+            // so the input can be cut after any newline and the chunks lexed
+            // on their own
+            List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+            int start = 0;
+            while (start < myinput.length()) {
+                int end = Math.min(start + CHUNK_SIZE, myinput.length());
+                while (end < myinput.length()
+                        && myinput.charAt(end - 1) != '\n') {
+                    end++;
+                }
+                ChunkTask chunk = new ChunkTask(start, end);
+                chunk.fork();
+                chunks.add(chunk);
+                start = end;
+            }
 
+            // Joining in order rethrows the error of the first bad chunk,
+            // which is the error that lexing the input front to back would
+            // have found
+            List<TokenBuffer> buffers = new ArrayList<TokenBuffer>();
+            int size = 0;
+            for (ChunkTask chunk : chunks) {
+                TokenBuffer buffer = chunk.join();
+                buffers.add(buffer);
+                size += buffer.size();
+            }
+            TokenBuffer tokens = new TokenBuffer(myinput, size);
+            for (TokenBuffer buffer : buffers) {
+                tokens.addAll(buffer);
             }
-            return new Token(Type.OCTAVE, a);
+            return tokens;
         }
-        return null;
-    }
-
-    private Token getNeutral() {
-        Matcher n = NEUTRAL.matcher(myinput.toString());
-        String a = "";
-        if (n.lookingAt()) {
-            assert 0 == n.start();
-            int end = n.end();
-            a = myinput.substring(0, end);
-            myinput.delete(0, end);
-            return new Token(Type.ACCIDENTAL, a);
-        }
-        return null;
     }
 
     /**
-     * helper method to check if the next token is a octavedown token modifies
-     * myinput returns the next token if next token is a octavedown token or
-     * null if it is not
+     * Lexes the in-memory input between start and end into a buffer of its
+     * own. Chunks of the same input can be lexed at the same time, as long
+     * as the input may be read by several threads at once, which is true of
+     * Strings, buffers and MappedInput.
      */
+    private class ChunkTask extends RecursiveTask<TokenBuffer> {
 
-    private Token getOctaveDown() {
-        Matcher n = OCTAVEDOWN.matcher(myinput.toString());
-        String a = "";
-        if (n.lookingAt()) {
-            assert 0 == n.start();
-            int end = n.end();
-            a = myinput.substring(0, end);
-            myinput.delete(0, end);
-            if (myinput.length() > 0 && (myinput.substring(0, 1).equals("'"))) {
-                System.out.println("bad");
-                throw new TokenMismatchException(
-                        "Cannot take one note both an octave up and down "
-                                + myinput);
+        private static final long serialVersionUID = 1L;
 
-            }
-            return new Token(Type.OCTAVE, a);
+        private final int start;
+        private final int end;
+
+        ChunkTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected TokenBuffer compute() {
+            // Dense music runs at about three tokens for every four
+            // characters
+            TokenBuffer buffer = new TokenBuffer(myinput, (end - start) / 4
+                    * 3 + 16);
+            new LexerIterator(start, end).tokenize(buffer);
+            return buffer;
         }
-        return null;
     }
 
     @Override
     public Iterator<Lexer.Token> iterator() {
+        if (reader != null) {
+            if (iterated) {
+                throw new IllegalStateException(
+                        "A streaming Lexer can only be iterated once");
+            }
+            iterated = true;
+        }
         return new LexerIterator();
     }
 }
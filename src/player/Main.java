@@ -1,17 +1,18 @@
 package player;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.sound.midi.MidiUnavailableException;
 
 import player.Parser.ParseException;
 import sound.SequencePlayer;
 
+import music.ast.CompactMusic;
 import music.ast.Music;
-import music.visitor.MusicalWellFormednessVisitor;
+import music.visitor.FusedAnalysisVisitor;
 import music.visitor.OptimalTicksPerQuarterNoteVisitor;
 import music.visitor.TranslateToSequenceVisitor;
 
@@ -20,6 +21,18 @@ import music.visitor.TranslateToSequenceVisitor;
  */
 public class Main {
 
+    /**
+     * The extension of files of precompiled tunes, see CompactMusic.write()
+     */
+    public static final String PRECOMPILED = ".abcc";
+
+    // Translates the voices of a tune at the same time, on all cores
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    // Finer tunes are quantized; 2^5 * 3^2 * 5 * 7, so that the lengths of
+    // most tuplets are still exact
+    private static final int MAX_TICKS_PER_QUARTER_NOTE = 10080;
+
     /**
      * Plays the input file using Java MIDI API and displays header information
      * to the standard output stream.
@@ -30,38 +43,37 @@ public class Main {
      * </p>
      * 
      * @param file
-     *            the name of input abc file
+     *            the name of input abc file, or of a file of precompiled
+     *            tunes ending in .abcc
      */
     public static void play(String file) {
-        // Load in the file
-        StringBuffer data = new StringBuffer();
-        try {
-            BufferedReader in = new BufferedReader(new FileReader(file));
-            int read = 0;
-            char[] buffer = new char[1024];
-            while ((read = in.read(buffer)) != -1) {
-                data.append(String.valueOf(buffer, 0, read));
-            }
-        } catch (FileNotFoundException e) {
-            System.err.println("File \"" + file + "\" not found");
-            return;
-        } catch (IOException ioe) {
-            System.err.println("Something horrible happened while loading \""
-                    + file + "\"");
-            return;
+        play(file, null);
+    }
+
+    /**
+     * Plays the input file like play(String), but takes the parsed tune and
+     * the results of the visitors that check and measure it from a cache, if
+     * it was played before.
+     * 
+     * @param file
+     *            the name of input abc file, or of a file of precompiled
+     *            tunes ending in .abcc
+     * @param cache
+     *            the cache of parsed tunes, or null to parse the file
+     */
+    public static void play(String file, ParseCache cache) {
+        ParseCache.Entry entry;
+        if (cache != null && !file.endsWith(PRECOMPILED)) {
+            entry = cached(file, cache);
+        } else {
+            Music music = file.endsWith(PRECOMPILED) ? load(file)
+                    : parse(file);
+            entry = (music != null) ? ParseCache.Entry.analyze(music) : null;
         }
-        // Now, create the parser and lexer
-        Lexer lexer = new Lexer(data.toString());
-        Parser parser = new Parser(lexer.iterator());
-        Music music = null;
-        // Get the Music AST
-        try {
-            music = parser.getMusic();
-        } catch (ParseException e) {
-            System.err.println("Error: Could not parse file \"" + file + "\"");
-            System.err.println(e.getMessage());
+        if (entry == null) {
             return;
         }
+        Music music = entry.getMusic();
 
         // Print some useful information
         System.out.println("Index Number: " + music.getIndexNumber());
@@ -73,32 +85,53 @@ public class Main {
         System.out.println("Key: " + music.getKeySignature());
         // See how well-formed this piece is.
         System.out.println("Checking musical piece for well-formedness....");
-        MusicalWellFormednessVisitor mwfv = new MusicalWellFormednessVisitor();
-        music.accept(mwfv);
-        String errors = mwfv.getErrors();
+        String errors = entry.getErrors();
         if (errors.length() > 0) {
             System.out.print(errors);
         }
         System.out.println("Going to try and play, even if errors occured...");
         
-        // Run a Visitor on the Music to find the LCM, so we can set ticks per
+        // The LCM of the lengths, found by the same walk, so we can set ticks
+        // per quarter note
         System.out.println("Computing ticks per quarter note...");
-        OptimalTicksPerQuarterNoteVisitor otpqnv = new OptimalTicksPerQuarterNoteVisitor();
-        int ticksPerQuarterNote = music.accept(otpqnv);
-        // Now that we have the actual Music, run the Visitor on it to populate
-        // a SequencePlayer
+        int ticksPerQuarterNote = entry.getTicksPerQuarterNote();
+        boolean quantized = false;
+        if (ticksPerQuarterNote > MAX_TICKS_PER_QUARTER_NOTE) {
+            // Too fine to play; an LCM that does not fit into an int is
+            // Integer.MAX_VALUE, so it is caught here too
+            OptimalTicksPerQuarterNoteVisitor ticks = new OptimalTicksPerQuarterNoteVisitor(
+                    MAX_TICKS_PER_QUARTER_NOTE);
+            ticksPerQuarterNote = music.accept(ticks);
+            quantized = ticks.isQuantized();
+            if (quantized) {
+                System.out.println("Rounding notes to " + ticksPerQuarterNote
+                        + " ticks per quarter note, off by at most "
+                        + ticks.getQuantizationError() + " quarter notes");
+            }
+        }
+        // Now populate a SequencePlayer with the notes that the walk that
+        // found the errors recorded, or with a Visitor if the tune was cached,
+        // with a track for every voice
         SequencePlayer sp = null;
         try {
-            sp = new SequencePlayer(music.getTempo(), ticksPerQuarterNote);
+            sp = new SequencePlayer(music.getTempo(), ticksPerQuarterNote,
+                    Math.max(1, music.getVoices().size()));
         } catch (Exception e) {
             System.err
                     .println("Could not initialize MIDI subsystem. Perhaps there is a problem with your computer?");
         }
 
-        TranslateToSequenceVisitor ttsv = new TranslateToSequenceVisitor(sp,
-                ticksPerQuarterNote);
+        FusedAnalysisVisitor analysis = entry.getAnalysis();
         try {
-            music.accept(ttsv);
+            if (quantized) {
+                music.accept(new TranslateToSequenceVisitor(sp,
+                        ticksPerQuarterNote, true));
+            } else if (analysis != null) {
+                analysis.translate(sp, POOL);
+            } else {
+                music.accept(new TranslateToSequenceVisitor(sp,
+                        ticksPerQuarterNote));
+            }
         } catch (Throwable t) {
             System.err.println("Could not convert ABC to MIDI. Check the file for impossible pitches?");
             System.err.println("Technical details:");
@@ -116,4 +149,81 @@ public class Main {
                     .println("Failed to play MIDI sounds. Perhaps there is a problem with your computer?");
         }
     }
+
+    /**
+     * Look an ABC file up in a cache, and parse it if it is not there.
+     * 
+     * @return the entry of the file, or null if it cannot be read or parsed
+     */
+    private static ParseCache.Entry cached(String file, ParseCache cache) {
+        try {
+            return cache.parseFile(file);
+        } catch (FileNotFoundException e) {
+            System.err.println("File \"" + file + "\" not found");
+            return null;
+        } catch (IOException ioe) {
+            System.err.println("Something horrible happened while loading \""
+                    + file + "\"");
+            return null;
+        } catch (ParseException e) {
+            System.err.println("Error: Could not parse file \"" + file + "\"");
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Lex and parse an ABC file.
+     * 
+     * @return the Music of the file, or null if it cannot be read or parsed
+     */
+    private static Music parse(String file) {
+        // Map the file into memory; the Lexer reads it in place
+        MappedInput data;
+        try {
+            data = MappedInput.map(file);
+        } catch (FileNotFoundException e) {
+            System.err.println("File \"" + file + "\" not found");
+            return null;
+        } catch (IOException ioe) {
+            System.err.println("Something horrible happened while loading \""
+                    + file + "\"");
+            return null;
+        }
+        // Now, create the parser and lexer
+        Lexer lexer = new Lexer(data);
+        Parser parser = new Parser(lexer.iterator());
+        // Get the Music AST
+        try {
+            return parser.getMusic();
+        } catch (ParseException e) {
+            System.err.println("Error: Could not parse file \"" + file + "\"");
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Load the first tune of a file that CompactMusic.write() wrote, without
+     * lexing or parsing anything.
+     * 
+     * @return the Music of the tune, or null if it cannot be loaded
+     */
+    private static Music load(String file) {
+        try {
+            List<CompactMusic> tunes = CompactMusic.map(file);
+            if (tunes.isEmpty()) {
+                System.err.println("File \"" + file + "\" holds no tunes");
+                return null;
+            }
+            return tunes.get(0).asMusic();
+        } catch (FileNotFoundException e) {
+            System.err.println("File \"" + file + "\" not found");
+            return null;
+        } catch (IOException e) {
+            System.err.println("Error: Could not load file \"" + file + "\"");
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
 }
@@ -0,0 +1,112 @@
+package player;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The contents of a memory-mapped ABC file, presented to the Lexer as a
+ * CharSequence without decoding the file first.
+ * 
+ * ABC notation is ASCII, so every byte is handed out as one character. Bytes
+ * outside of ASCII can only appear in text such as titles, composers and
+ * comments; they never form a token by themselves. When the text of a
+ * subsequence is requested through {@link #toString()}, ASCII runs are
+ * copied directly, and only the runs of non-ASCII bytes are decoded as UTF-8.
+ * Note that this means that the length of the resulting String can be
+ * shorter than {@link #length()}.
+ * 
+ */
+public class MappedInput implements CharSequence {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    MappedInput(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Map the given file into memory.
+     * 
+     * @param file
+     *            The name of the file to map
+     * @return The contents of the file
+     * @throws IOException
+     *             if the file cannot be opened or mapped
+     */
+    public static MappedInput map(String file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File \"" + file + "\" is too large");
+            }
+            // The mapping stays valid after the channel has been closed
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    size);
+            return new MappedInput(bytes, 0, (int) size);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index
+                    + " out of bounds for length " + length);
+        }
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Subsequence " + start + ", "
+                    + end + " out of bounds for length " + length);
+        }
+        return new MappedInput(bytes, offset + start, end - start);
+    }
+
+    /**
+     * @return the text of this sequence, with any non-ASCII runs decoded as
+     *         UTF-8
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(length);
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            byte b = bytes.get(i);
+            if (b >= 0) {
+                sb.append((char) b);
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < end && bytes.get(i) < 0) {
+                i++;
+            }
+            ByteBuffer span = bytes.duplicate();
+            span.limit(i);
+            span.position(start);
+            sb.append(UTF8.decode(span));
+        }
+        return sb.toString();
+    }
+}
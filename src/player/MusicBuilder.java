@@ -0,0 +1,373 @@
+package player;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import music.ast.Accidental;
+import music.ast.Bar;
+import music.ast.Chord;
+import music.ast.KeySignature;
+import music.ast.Music;
+import music.ast.MusicalElementContainer;
+import music.ast.MusicalLength;
+import music.ast.MusicalType;
+import music.ast.Note;
+import music.ast.Repeat;
+import music.ast.Rest;
+import music.ast.Tuplet;
+import music.ast.Voice;
+import player.Parser.ParseException;
+import sound.Pitch;
+
+/**
+ * MusicBuilder class Listens to the events of a Parser and builds the Music
+ * object that they describe, which is returned by getMusic() once the parse
+ * is done. Keeps states of currentVoice, parsingStates, and currentState,
+ * which itself keeps states of currentRepeat, astStack, barList, and
+ * altRepeat.
+ *
+ */
+public class MusicBuilder implements MusicListener {
+
+    private Music music; // overall Music object
+    private Voice currentVoice; // current Voice object. Add to it
+    private Map<String, ParsingState> parsingStates; // map of voice to the
+                                                     // ParsingState
+                                                     // associated with the
+                                                     // voice
+    private ParsingState currentState; // current ParsingState of the Voice.
+    private Deque<MusicalElementContainer> mecStack; // scratch stack for
+                                                     // onAccidental
+
+    // this includes the current Repeats/Bars of the Voice that are not yet
+    // in the Voice object, as well as a Stack that keeps track of the path of
+    // each element down the AST
+
+    private static class ParsingState {
+        Repeat currentRepeat;
+        Deque<MusicalElementContainer> astStack; // unsynchronized Stack
+        int altRepeat;
+        List<Bar> barList;
+
+        ParsingState() {
+            this.astStack = new ArrayDeque<MusicalElementContainer>();
+            this.currentRepeat = null;
+            this.altRepeat = 0;
+            this.barList = new ArrayList<Bar>();
+        }
+    }
+
+    /**
+     * Constructs a new MusicBuilder, with an empty "default" voice that
+     * receives everything before the first V: field.
+     */
+    public MusicBuilder() {
+        this.music = new Music();
+        this.currentVoice = new Voice("default");
+        this.parsingStates = new HashMap<String, ParsingState>();
+        ParsingState ps = new ParsingState();
+        this.parsingStates.put("default", ps);
+        this.currentState = ps;
+        currentState.astStack.push(new Bar());
+        this.mecStack = new ArrayDeque<MusicalElementContainer>();
+    }
+
+    /**
+     * @return - Music object built from the events so far; complete once
+     *         onEnd() has been called
+     */
+    public Music getMusic() {
+        return this.music;
+    }
+
+    /**
+     * @return - the Voice that the events currently go to
+     */
+    Voice getCurrentVoice() {
+        return this.currentVoice;
+    }
+
+    @Override
+    public void onHeaderField(Type field, String value) throws ParseException {
+        switch (field) {
+
+        case FIELD_INDEX_NUMBER:
+            music.setIndexNumber(value);
+            break;
+
+        case FIELD_TITLE:
+            music.setTitle(value);
+            break;
+
+        case FIELD_COMPOSER_NAME:
+            music.setComposer(value);
+            break;
+
+        case FIELD_DEFAULT_LENGTH:
+            MusicalLength length;
+            String[] result = value.split("/"); // strict fraction - must
+                                                // have bar as spec. by
+                                                // grammar
+            if (result.length != 2) {
+                throw new ParseException("ERROR: Default length is invalid.");
+            }
+            try {
+                length = new MusicalLength(Integer.parseInt(result[0]),
+                        Integer.parseInt(result[1]));
+                music.setDefaultLength(length);
+            } catch (Throwable t) {
+                throw new ParseException("Error reading default length");
+            }
+            break;
+
+        case FIELD_METER:
+            MusicalLength meter = null;
+            if ("C".equals(value)) { // common time = 4/4 time
+                meter = new MusicalLength(4, 4);
+            } else if ("C|".equals(value)) { // cut time = 2/2 time
+                meter = new MusicalLength(2, 2);
+            } else {
+                String[] meterParts = value.split("/");
+                if (meterParts.length != 2) { // meter must be a fraction
+                                              // with num and denom
+                    throw new ParseException("ERROR: Meter is invalid.");
+                }
+                meter = new MusicalLength(Integer.parseInt(meterParts[0]),
+                        Integer.parseInt(meterParts[1]));
+            }
+            music.setMeter(meter);
+            break;
+
+        case FIELD_TEMPO:
+            music.setTempo(Integer.parseInt(value));
+            break;
+
+        case FIELD_KEY:
+            try {
+                // do a keysignature lookup to find out which notes are
+                // sharped or flatted
+                music.setKeySignature(new KeySignature(value));
+            } catch (Throwable t) {
+                throw new ParseException(t.getMessage());
+            }
+            break;
+
+        default:
+            throw new ParseException("ERROR: Unknown header field " + field);
+        }
+    }
+
+    @Override
+    public void onVoiceSwitch(String voice) {
+        // Either the voice declaration in the header --> create blank
+        // Voices
+        // Or a new voice declared in the body
+
+        // put currentVoice into Music
+        music.addVoice(currentVoice.getName(), currentVoice);
+        parsingStates.put(currentVoice.getName(), currentState);
+        Voice newVoice = music.getVoice(voice);
+        if (newVoice != null) { // seen this Voice before
+            currentVoice = newVoice;
+            currentState = parsingStates.get(currentVoice.getName());
+        } else { // never seen this Voice before
+            currentVoice = new Voice(voice);
+            currentState = new ParsingState();
+            currentState.astStack.push(new Bar());
+        }
+    }
+
+    @Override
+    public void onAccidental(Pitch pitch, int value) {
+        closeTuplet();
+        // the accidental holds for the rest of the bar or tuplet, so it goes
+        // below any chord that the note is in
+        while (currentState.astStack.peek().getMusicalType() != MusicalType.BAR
+                && currentState.astStack.peek().getMusicalType() != MusicalType.TUPLET) {
+            mecStack.push(currentState.astStack.pop());
+        }
+        currentState.astStack.peek().add(new Accidental(pitch, value));
+        while (!mecStack.isEmpty()) {
+            currentState.astStack.push(mecStack.pop());
+        }
+    }
+
+    @Override
+    public void onNote(Pitch pitch, int num, int denom) {
+        closeTuplet();
+        currentState.astStack.peek().add(
+                new Note(pitch, MusicalLength.valueOf(num, denom)));
+        closeTuplet();
+    }
+
+    @Override
+    public void onRest(int num, int denom) {
+        closeTuplet();
+        currentState.astStack.peek().add(
+                new Rest(MusicalLength.valueOf(num, denom)));
+        closeTuplet();
+    }
+
+    @Override
+    public void onChordStart() {
+        // set stack to have new Chord to push notes into
+        closeTuplet();
+        currentState.astStack.push(new Chord());
+    }
+
+    @Override
+    public void onChordEnd() throws ParseException {
+        // put chord into object on stack below it
+        closeTuplet();
+        if (currentState.astStack.peek().getMusicalType() != MusicalType.CHORD) {
+            throw new ParseException(
+                    "ERROR: End chord character without a chord present.");
+        }
+        Chord chord = (Chord) currentState.astStack.pop();
+        currentState.astStack.peek().add(chord);
+    }
+
+    @Override
+    public void onTuplet(int n) {
+        closeTuplet();
+        currentState.astStack.push(new Tuplet(n));
+    }
+
+    @Override
+    public void onBarline(String kind) throws ParseException {
+        // do for all types of barlines, repeat or not
+        closeTuplet();
+        if (currentState.astStack.peek().getMusicalType() != MusicalType.BAR) {
+            throw new ParseException("ERROR: Invalid barline position.");
+        }
+        Bar bar = (Bar) currentState.astStack.pop();
+        barClosed(bar);
+        // if there are repeats, add bar to repeat
+        if (currentState.currentRepeat != null) {
+            if (bar.getElements().size() > 0) {
+                addToRepeat(bar);
+            }
+        } else {
+            currentState.barList.add(bar);
+        }
+        currentState.astStack.push(new Bar());
+
+        if (kind.equals("|:")) { // begin repeat
+            addAllToCurrentVoice();
+            currentState.currentRepeat = new Repeat();
+            currentVoice.seeBeginRepeat();
+            return;
+        }
+
+        if (kind.equals(":|")) {
+            // if only :| without |: --> repeat from beginning of voice
+            if (currentState.currentRepeat == null) {
+                // if no currentRepeat, create one
+                if (!currentVoice.hasBeginRepeat()) {
+                    currentState.currentRepeat = new Repeat();
+                    for (Bar b : currentState.barList) {
+                        currentState.currentRepeat.addNormalBar(b);
+                    }
+                    currentState.barList.clear();
+                } else {
+                    throw new ParseException("ERROR: Invalid repeat token.");
+                }
+            }
+            currentVoice.add(currentState.currentRepeat);
+            if (currentState.altRepeat == 0) {
+                currentState.currentRepeat = null;
+            }
+        }
+
+        // double bars - marker for begin repeat if no |: barline
+        if (kind.equals("||") || kind.equals("|]")) {
+            currentState.currentRepeat = null;
+            addAllToCurrentVoice();
+        }
+    }
+
+    @Override
+    public void onNthRepeat(int n) throws ParseException {
+        currentState.altRepeat = n;
+        if (currentState.altRepeat == 1) {
+            if (currentState.currentRepeat == null) {
+                currentState.currentRepeat = new Repeat();
+                for (Bar ms : currentState.barList) {
+                    currentState.currentRepeat.addNormalBar(ms);
+                }
+                currentState.barList.clear();
+            }
+        } else if (currentState.altRepeat < 1) {
+            throw new ParseException("ERROR: Invalid n-th repeat " + n);
+        }
+    }
+
+    @Override
+    public void onEnd() throws ParseException {
+        closeTuplet();
+        if (currentState.astStack.peek().getMusicalType() != MusicalType.BAR) {
+            throw new ParseException("ERROR: Invalid barline position.");
+        }
+        if (currentState.currentRepeat != null) {
+            // unclosed repeat - really shouldn't happen, but we will extend the
+            // repeat to the end
+            addToRepeat((Bar) currentState.astStack.pop());
+            currentVoice.add(currentState.currentRepeat);
+        } else {
+            Bar top = (Bar) currentState.astStack.pop();
+            if (top.getElements().size() > 0) {
+                currentVoice.add(top);
+            }
+        }
+        addAllToCurrentVoice();
+        music.addVoice(currentVoice.getName(), currentVoice);
+    }
+
+    /**
+     * Called with the Bar that each barline closes, before the Bar is put
+     * anywhere. Does nothing; subclasses can use it to find out where the
+     * bars of the Music came from.
+     */
+    protected void barClosed(Bar bar) {
+    }
+
+    private void addToRepeat(Bar bar) throws ParseException {
+        if (currentState.altRepeat == 0) {
+            currentState.currentRepeat.addNormalBar(bar);
+        } else if (currentState.altRepeat > 0) {
+            currentState.currentRepeat.addToEnding(currentState.altRepeat,
+                    bar);
+        } else {
+            throw new ParseException("ERROR: Invalid n-th repeat state");
+        }
+    }
+
+    private void addAllToCurrentVoice() {
+        for (Bar b : currentState.barList) {
+            if (b.getElements().size() == 0) {
+                continue;
+            }
+            currentVoice.add(b);
+        }
+        currentState.barList.clear();
+    }
+
+    /**
+     * Once a tuplet on top of the stack has all of its notes, insert it into
+     * the object below it.
+     */
+    private void closeTuplet() {
+        if (currentState.astStack.size() > 0
+                && currentState.astStack.peek().getMusicalType() == MusicalType.TUPLET) {
+            Tuplet tuplet = (Tuplet) currentState.astStack.peek();
+            if (tuplet.getCurrentNumNotes() == tuplet.getSize()) {
+                currentState.astStack.pop();
+                currentState.astStack.peek().add(tuplet);
+            }
+        }
+    }
+}
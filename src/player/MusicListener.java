@@ -0,0 +1,68 @@
+package player;
+
+import player.Parser.ParseException;
+import sound.Pitch;
+
+/**
+ * Receives the musical events of a piece from {@link Parser#parse}, in the
+ * order in which they appear in the input, without an AST being built.
+ *
+ * Each note or rest arrives complete, with its octave and length already
+ * applied, right before the next element of its voice begins. Any of the
+ * callbacks may reject the piece by throwing a ParseException, which stops
+ * the parse.
+ */
+public interface MusicListener {
+
+    /**
+     * A header field other than V:, e.g. FIELD_TITLE or FIELD_KEY, with the
+     * text after the colon.
+     */
+    public void onHeaderField(Type field, String value) throws ParseException;
+
+    /**
+     * A V: field. Everything up to the next one belongs to the named voice.
+     */
+    public void onVoiceSwitch(String voice) throws ParseException;
+
+    /**
+     * An accidental on the next note, which carries the given pitch; -2 to 2
+     * semitones, where 0 is a natural.
+     */
+    public void onAccidental(Pitch pitch, int value) throws ParseException;
+
+    /**
+     * A note of length num/denom times the default length.
+     */
+    public void onNote(Pitch pitch, int num, int denom) throws ParseException;
+
+    /**
+     * A rest of length num/denom times the default length.
+     */
+    public void onRest(int num, int denom) throws ParseException;
+
+    public void onChordStart() throws ParseException;
+
+    public void onChordEnd() throws ParseException;
+
+    /**
+     * The start of a tuplet of n elements.
+     */
+    public void onTuplet(int n) throws ParseException;
+
+    /**
+     * A barline, given as its text: one of | || [| |] |: :|
+     */
+    public void onBarline(String kind) throws ParseException;
+
+    /**
+     * The start of the nth ending of a repeat, e.g. [1 or [2.
+     */
+    public void onNthRepeat(int n) throws ParseException;
+
+    /**
+     * The end of the input.
+     */
+    public void onEnd() throws ParseException;
+
+}
@@ -0,0 +1,438 @@
+package player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import music.ast.CompactMusic;
+import music.ast.Music;
+import music.visitor.FusedAnalysisVisitor;
+import player.Parser.ParseException;
+
+/**
+ * A cache of parsed tunes in a directory, so that a tune that was seen before
+ * is neither lexed, parsed nor visited again.
+ *
+ * A tune is keyed by the SHA-256 of its ABC bytes and Parser.VERSION, and its
+ * entry holds a CRC32 of the rest of it, the ticks per quarter note, the
+ * well-formedness errors and the Music as a CompactMusic, which is mapped
+ * rather than read when the entry is found. Entries are written to a
+ * temporary file and moved into place atomically, so several JVMs on a host
+ * can share the directory: a reader only ever sees whole entries, and two
+ * JVMs that write the same entry write the same bytes. A damaged entry is
+ * deleted and parsed again.
+ *
+ * Once the entries take up more than the budget, the least recently used
+ * ones are deleted until they take up three quarters of it, under a lock on
+ * the directory. Every JVM only counts the entries that it adds itself
+ * between evictions, so the budget can be overshot by what other JVMs add in
+ * the meantime.
+ *
+ * The cache is only an optimization: if an entry cannot be read or written,
+ * the tune is parsed as if there were no cache.
+ *
+ */
+public class ParseCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x41424345; // "ABCE"
+    private static final int FORMAT = 3; // of the entries
+    private static final String SUFFIX = ".abce"; // not a CompactMusic file
+    private static final String TEMPORARY = ".tmp";
+    private static final String LOCK = "lock";
+    // Temporary files older than this were left behind by a crashed JVM
+    private static final long ABANDONED = 60 * 60 * 1000;
+
+    private final File directory;
+    private final long budget;
+    private long size; // of the entries, as of the last eviction
+    private int misses;
+
+    /**
+     * The results of parsing a tune.
+     */
+    public static class Entry {
+        private final Music music;
+        private final int ticksPerQuarterNote;
+        private final String errors;
+        private final FusedAnalysisVisitor analysis; // null if from a file
+
+        Entry(Music music, int ticksPerQuarterNote, String errors,
+                FusedAnalysisVisitor analysis) {
+            this.music = music;
+            this.ticksPerQuarterNote = ticksPerQuarterNote;
+            this.errors = errors;
+            this.analysis = analysis;
+        }
+
+        /**
+         * Walk a Music once, for what an Entry needs.
+         */
+        static Entry analyze(Music music) {
+            FusedAnalysisVisitor analysis = new FusedAnalysisVisitor();
+            music.accept(analysis);
+            return new Entry(music, analysis.getTicksPerQuarterNote(),
+                    analysis.getErrors(), analysis);
+        }
+
+        /**
+         * @return The walk that found the results of this Entry, which can
+         *         also translate the Music, or null if the Entry was read
+         *         from the cache
+         */
+        FusedAnalysisVisitor getAnalysis() {
+            return analysis;
+        }
+
+        /**
+         * @return The Music of the tune, which must not be changed
+         */
+        public Music getMusic() {
+            return music;
+        }
+
+        /**
+         * @return The result of the OptimalTicksPerQuarterNoteVisitor
+         */
+        public int getTicksPerQuarterNote() {
+            return ticksPerQuarterNote;
+        }
+
+        /**
+         * @return The errors of the MusicalWellFormednessVisitor, or ""
+         */
+        public String getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Open a cache in a directory, which is created if needed.
+     *
+     * @param directory
+     *            The directory of the entries, which may be shared with other
+     *            JVMs
+     * @param budget
+     *            The number of bytes that the entries may take up
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public ParseCache(File directory, long budget) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()
+                && !directory.isDirectory()) {
+            throw new IOException("Cannot create cache directory \""
+                    + directory + "\"");
+        }
+        this.directory = directory;
+        this.budget = budget;
+        for (File file : list(SUFFIX)) {
+            size += file.length();
+        }
+    }
+
+    /**
+     * @return The number of tunes that were not in the cache, and were parsed
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the results of parsing an ABC file.
+     *
+     * @param file
+     *            The name of the file
+     * @return The results, from the cache if the file was parsed before
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws ParseException
+     *             if the file cannot be parsed
+     */
+    public Entry parseFile(String file) throws IOException, ParseException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File \"" + file + "\" is too large");
+            }
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    length);
+            return get(bytes, new MappedInput(bytes, 0, (int) length));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the results of parsing ABC text, which is keyed by its UTF-8 bytes.
+     *
+     * @param input
+     *            The text
+     * @return The results, from the cache if the text was parsed before
+     * @throws ParseException
+     *             if the text cannot be parsed
+     */
+    public Entry parse(CharSequence input) throws ParseException {
+        return get(ByteBuffer.wrap(input.toString().getBytes(UTF8)), input);
+    }
+
+    private Entry get(ByteBuffer bytes, CharSequence input)
+            throws ParseException {
+        String key = key(bytes);
+        File file = new File(directory, key + SUFFIX);
+        Entry entry = read(file);
+        if (entry != null) {
+            return entry;
+        }
+        synchronized (this) {
+            misses++;
+        }
+        Music music = new Parser(new Lexer(input).iterator()).getMusic();
+        entry = Entry.analyze(music);
+        write(key, file, entry);
+        return entry;
+    }
+
+    /**
+     * @return the key of ABC bytes, as hex digits
+     */
+    private static String key(ByteBuffer bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(bytes.duplicate());
+        digest.update(ByteBuffer.allocate(8).putInt(Parser.VERSION)
+                .putInt(FORMAT).array());
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the entry in a file, or null if there is none
+     */
+    private static Entry read(File file) {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (bytes.getInt() != MAGIC) {
+                throw new IOException("Not a cache entry");
+            }
+            int checksum = bytes.getInt();
+            if (checksum != checksum(bytes.duplicate())) {
+                throw new IOException("Damaged cache entry");
+            }
+            int ticks = bytes.getInt();
+            int length = bytes.getInt();
+            if (length < 0 || length > bytes.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] errors = new byte[length];
+            bytes.get(errors);
+            CompactMusic compact = CompactMusic.read(bytes);
+            file.setLastModified(System.currentTimeMillis()); // recently used
+            return new Entry(compact.asMusic(), ticks, new String(errors,
+                    UTF8), null);
+        } catch (IOException e) {
+            file.delete(); // damaged, so parse again
+            return null;
+        } catch (BufferUnderflowException e) {
+            file.delete();
+            return null;
+        } catch (RuntimeException e) {
+            file.delete(); // damaged in a way that the checksum missed
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the entry has been read
+            }
+        }
+    }
+
+    /**
+     * @return the CRC32 of the remaining bytes of a buffer, which are
+     *         consumed
+     */
+    private static int checksum(ByteBuffer bytes) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (bytes.hasRemaining()) {
+            int length = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write an entry to a temporary file, and move it into place.
+     */
+    private void write(String key, File file, Entry entry) {
+        CompactMusic compact;
+        try {
+            compact = CompactMusic.of(entry.getMusic());
+        } catch (IllegalArgumentException e) {
+            return; // a pitch that does not fit, so not cached
+        }
+        File temporary = null;
+        try {
+            // The entry is put together first, as its checksum comes first
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            byte[] errors = entry.getErrors().getBytes(UTF8);
+            data.writeInt(entry.getTicksPerQuarterNote());
+            data.writeInt(errors.length);
+            data.write(errors);
+            compact.write(data);
+            data.flush();
+            byte[] payload = bytes.toByteArray();
+
+            temporary = File.createTempFile(key, TEMPORARY, directory);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                    temporary));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(checksum(ByteBuffer.wrap(payload)));
+                out.write(payload);
+            } finally {
+                out.close();
+            }
+            long length = temporary.length();
+            try {
+                Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            added(length);
+        } catch (IOException e) {
+            // not cached, which only costs a parse the next time
+        } finally {
+            if (temporary != null) {
+                temporary.delete();
+            }
+        }
+    }
+
+    private void added(long length) throws IOException {
+        synchronized (this) {
+            size += length;
+            if (size <= budget) {
+                return;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Delete the least recently used entries, until they take up three
+     * quarters of the budget.
+     */
+    private void evict() throws IOException {
+        // A JVM cannot lock a file twice, so its caches take turns
+        synchronized (ParseCache.class) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(
+                    directory, LOCK), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    long total = 0;
+                    final Map<File, Long> used = new HashMap<File, Long>();
+                    List<File> entries = list(SUFFIX);
+                    for (File file : entries) {
+                        used.put(file, file.lastModified());
+                        total += file.length();
+                    }
+                    Collections.sort(entries, new Comparator<File>() {
+                        @Override
+                        public int compare(File a, File b) {
+                            return used.get(a).compareTo(used.get(b));
+                        }
+                    });
+                    long target = budget - budget / 4;
+                    for (File file : entries) {
+                        if (total <= target) {
+                            break;
+                        }
+                        long length = file.length();
+                        if (file.delete()) {
+                            total -= length;
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    for (File file : list(TEMPORARY)) {
+                        if (now - file.lastModified() > ABANDONED) {
+                            file.delete();
+                        }
+                    }
+                    synchronized (this) {
+                        size = total;
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * @return the files in the directory with the given suffix
+     */
+    private List<File> list(final String suffix) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(suffix) && file.isFile();
+            }
+        });
+        List<File> list = new ArrayList<File>();
+        if (files != null) {
+            Collections.addAll(list, files);
+        }
+        return list;
+    }
+}
@@ -3,73 +3,66 @@ package player;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import music.ast.Accidental;
-import music.ast.Bar;
-import music.ast.Chord;
-import music.ast.KeySignature;
 import music.ast.Music;
-
-import music.ast.MusicalElementContainer;
-import music.ast.MusicalLength;
-import music.ast.MusicalType;
-import music.ast.Note;
-import music.ast.Repeat;
-import music.ast.Rest;
-import music.ast.Tuplet;
 import music.ast.Voice;
 import player.Lexer.Token;
 import sound.Pitch;
 
 /**
- * Parser class Takes a single lexer and iterates through Tokens. Ultimately
- * creates the Music object given by the Tokens through the call to getMusic()
- * Keeps states of currentVoice, parsingStates, and currentState, which itself
- * keeps states of currentRepeat, astStack, currentNote, currentAccidental,
- * barList, and altRepeat.
+ * Parser class Takes a single lexer and iterates through Tokens. Turns the
+ * Tokens into musical events for a MusicListener through the call to
+ * parse(), or ultimately creates the Music object given by the Tokens through
+ * the call to getMusic(), which parses into a MusicBuilder. Keeps states of
+ * currentVoice and noteStates, and the NoteState of the current voice, which
+ * holds the note that is being read.
  * 
  * @author charlesliu
  * 
  */
 public class Parser {
 
-    private Iterator<Lexer.Token> lexer;
-    private Music music; // overall Music object
-    private Voice currentVoice; // current Voice object. Add to it
-    private Map<String, ParsingState> parsingStates; // map of voice to the
-                                                     // ParsingState
-                                                     // associated with the
-                                                     // voice
-    private ParsingState currentState; // current ParsingState of the Voice.
-
-    // this includes the current Notes/Accidentals/Repeats/Bars of the Voice
-    // that are not yet
-    // in the Voice object, as well as a Stack that keeps track of the path of
-    // each element down the AST
-
-    private static class ParsingState {
-        Repeat currentRepeat;
-        Stack<MusicalElementContainer> astStack;
-        Note currentNote;
-        int currentAccidental;
+    private Iterator<Lexer.Token> lexer; // null when parsing a TokenBuffer
+    private Token token; // current token of the lexer
+    private TokenBuffer tokens; // null when parsing from a lexer
+    private int index; // index of the current token in tokens
+    private MusicListener listener; // receives the events
+    private String currentVoice; // name of the current voice
+    private Map<String, NoteState> noteStates; // map of voice to the
+                                               // NoteState associated with
+                                               // the voice
+    private NoteState currentNote; // NoteState of the current voice
+
+    private static final String[] BARLINES = { "|", "||", "[|", "|]", "|:",
+            ":|" };
+
+    /**
+     * The version of the Music that the Parser builds, and of what the
+     * visitors compute from it. Bump it whenever the Music of some input
+     * changes, so that the tunes in a ParseCache are parsed again.
+     */
+    public static final int VERSION = 1;
+
+    // The note, rest or accidental that is being read in a voice. It is only
+    // passed on to the listener when the next element of the voice begins,
+    // since its octave and length follow the letter
+
+    private static class NoteState {
+        boolean hasNote;
+        char letter; // upper case, or 'z' for a rest
+        int octave; // octaves above middle C
+        int num;
+        int denom;
+        int accidental;
         boolean fractionBarProcessed;
         boolean hasAccidental;
-        int altRepeat;
-        List<Bar> barList;
-
-        ParsingState() {
-            this.astStack = new Stack<MusicalElementContainer>();
-            this.currentNote = null;
-            this.currentAccidental = 0;
-            this.fractionBarProcessed = false;
-            this.currentRepeat = null;
-            this.hasAccidental = false;
-            this.altRepeat = 0;
-            this.barList = new ArrayList<Bar>();
-        }
     }
 
     @SuppressWarnings("serial")
@@ -88,13 +81,24 @@ public class Parser {
      */
     public Parser(Iterator<Lexer.Token> lexer) {
         this.lexer = lexer;
-        this.music = new Music();
-        this.currentVoice = new Voice("default");
-        this.parsingStates = new HashMap<String, ParsingState>();
-        ParsingState ps = new ParsingState();
-        this.parsingStates.put("default", ps);
-        this.currentState = ps;
-        currentState.astStack.push(new Bar());
+        this.currentVoice = "default";
+        this.noteStates = new HashMap<String, NoteState>();
+        NoteState ns = new NoteState();
+        this.noteStates.put("default", ns);
+        this.currentNote = ns;
+    }
+
+    /**
+     * Constructs a new Parser object that reads its tokens straight out of a
+     * TokenBuffer, without a Token object for each of them.
+     * 
+     * @param tokens
+     *            - the tokens to parse, e.g. from Lexer.tokenize()
+     */
+    public Parser(TokenBuffer tokens) {
+        this((Iterator<Lexer.Token>) null);
+        this.tokens = tokens;
+        this.index = -1;
     }
 
     /**
@@ -107,150 +111,271 @@ public class Parser {
      *             the wrong location
      */
     public Music getMusic() throws ParseException {
+        MusicBuilder builder = new MusicBuilder();
+        parse(builder);
+        return builder.getMusic();
+    }
+
+    /**
+     * Event parsing function. Passes every musical element of the tokens to
+     * the listener as soon as it is complete, without building any Music.
+     * Modifies - all fields
+     * 
+     * @param listener
+     *            - receives the events, and may stop the parse by throwing a
+     *            ParseException
+     * @throws ParseException
+     *             - on all failures that involve invalid Tokens or Tokens in
+     *             the wrong location
+     */
+    public void parse(MusicListener listener) throws ParseException {
+        parseTokens(listener, false);
+        endParse();
+    }
 
-        while (lexer.hasNext()) {
-            Token token = null;
+    /**
+     * Header parsing function. Returns a Music object that holds only the
+     * header fields and the voices declared in the header, all of them
+     * empty. Parsing stops at the K: field that ends the header, or at the
+     * first token of the body if there is none, so a lexer iterator never
+     * lexes the body. Modifies - all fields
+     * 
+     * @return - Music object with the header of the tokens
+     * @throws ParseException
+     *             - on all failures that involve invalid header fields
+     */
+    public Music getHeader() throws ParseException {
+        MusicBuilder builder = new MusicBuilder();
+        parseTokens(builder, true);
+        endParse();
+        return builder.getMusic();
+    }
+
+    /**
+     * Parallel parsing function. Returns the same Music object as getMusic(),
+     * or fails with the same error, but builds every voice on a task of its
+     * own. A pre-pass collects the tokens of each voice, which are the tokens
+     * between a V: field for the voice and the next V: field; the tokens
+     * before the first V: field belong to the "default" voice. Only
+     * available for a TokenBuffer; a Parser of a lexer iterator just calls
+     * getMusic(). Modifies - all fields
+     * 
+     * @param executor
+     *            - runs the tasks; it is not shut down
+     * @return - Music object that corresponds to the entirety of the tokens.
+     * @throws ParseException
+     *             - on all failures that involve invalid Tokens or Tokens in
+     *             the wrong location
+     */
+    public Music getMusic(ExecutorService executor) throws ParseException {
+        if (tokens == null) {
+            return getMusic();
+        }
+
+        // Pre-pass: split the tokens by voice. A V: field goes with the
+        // voice that it switches to.
+        Map<String, VoiceTokens> voices = new LinkedHashMap<String, VoiceTokens>();
+        VoiceTokens voice = new VoiceTokens(tokens);
+        voices.put("default", voice);
+        int start = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.getType(i) == Type.FIELD_VOICE) {
+                voice.add(start, i);
+                String name = tokens.getText(i);
+                voice = voices.get(name);
+                if (voice == null) {
+                    voice = new VoiceTokens(tokens);
+                    voices.put(name, voice);
+                }
+                start = i;
+            }
+        }
+        voice.add(start, tokens.size());
+        voice.last = true; // only the voice at the end is finished off
+
+        List<Future<VoiceTokens>> results = new ArrayList<Future<VoiceTokens>>();
+        for (VoiceTokens v : voices.values()) {
+            results.add(executor.submit(v));
+        }
+        // Report the error that parsing the tokens in order would have hit:
+        // the one at the earliest token
+        VoiceTokens failed = null;
+        for (Future<VoiceTokens> result : results) {
+            VoiceTokens v;
             try {
-                token = lexer.next();
-            } catch (Throwable t) {
-                throw new ParseException(t.getMessage());
+                v = result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ParseException("Interrupted while parsing");
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            if (v.error != null
+                    && (failed == null || v.errorIndex < failed.errorIndex)) {
+                failed = v;
             }
-            switch (token.type) {
+        }
+        if (failed != null) {
+            if (failed.error instanceof ParseException) {
+                throw (ParseException) failed.error;
+            }
+            throw (RuntimeException) failed.error;
+        }
+
+        // Header fields can appear anywhere; the last of each kind wins
+        MusicBuilder header = new MusicBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            Type type = tokens.getType(i);
+            if (inHeader(type) && type != Type.FIELD_VOICE
+                    && type != Type.COMMENT) {
+                header.onHeaderField(type, tokens.getText(i));
+            }
+        }
+        Music music = header.getMusic();
+        for (Map.Entry<String, VoiceTokens> v : voices.entrySet()) {
+            music.addVoice(v.getKey(), v.getValue().voice);
+        }
+        return music;
+    }
+
+    /**
+     * The tokens of one voice, and the result of parsing them on their own.
+     */
+    private static class VoiceTokens implements Callable<VoiceTokens> {
+        final TokenBuffer all; // tokens of all voices
+        final TokenBuffer tokens; // tokens of this voice only
+        int[] origins; // index of each of the tokens in all
+        boolean last; // whether the input ends in this voice
+        Voice voice; // result
+        Exception error; // or error, at the token with index errorIndex
+        int errorIndex;
+
+        VoiceTokens(TokenBuffer all) {
+            this.all = all;
+            this.tokens = new TokenBuffer(all.getSource(), 16);
+            this.origins = new int[16];
+        }
+
+        void add(int from, int to) {
+            int size = tokens.size();
+            tokens.addRange(all, from, to);
+            if (tokens.size() > origins.length) {
+                int[] copy = new int[Math.max(tokens.size(),
+                        origins.length * 2)];
+                System.arraycopy(origins, 0, copy, 0, size);
+                origins = copy;
+            }
+            for (int i = from; i < to; i++) {
+                origins[size++] = i;
+            }
+        }
+
+        public VoiceTokens call() {
+            Parser parser = new Parser(tokens);
+            MusicBuilder builder = new MusicBuilder();
+            try {
+                parser.parseTokens(builder, false);
+                if (last) {
+                    parser.endParse();
+                }
+                voice = builder.getCurrentVoice();
+            } catch (ParseException e) {
+                fail(e, parser.index);
+            } catch (RuntimeException e) {
+                fail(e, parser.index);
+            }
+            return this;
+        }
+
+        private void fail(Exception e, int index) {
+            error = e;
+            errorIndex = (index < tokens.size()) ? origins[index] : all.size();
+        }
+    }
+
+    private void parseTokens(MusicListener listener, boolean headerOnly)
+            throws ParseException {
+        this.listener = listener;
+
+        boolean headerDone = false;
+        while (!headerDone && nextToken()) {
+            if (headerOnly && !inHeader(type())) {
+                break;
+            }
+            switch (type()) {
 
             case COMMENT:
                 break; // ignore
 
             case FIELD_INDEX_NUMBER:
-                music.setIndexNumber(token.text);
-                break;
-
             case FIELD_TITLE:
-                music.setTitle(token.text);
-                break;
-
             case FIELD_COMPOSER_NAME:
-                music.setComposer(token.text);
-                break;
-
             case FIELD_DEFAULT_LENGTH:
-                MusicalLength length;
-                String[] result = token.text.split("/"); // strict fraction -
-                                                         // must have bar as
-                                                         // spec. by grammar
-                if (result.length != 2) {
-                    throw new ParseException(
-                            "ERROR: Default length is invalid.");
-                }
-                try {
-                    length = new MusicalLength(Integer.parseInt(result[0]),
-                            Integer.parseInt(result[1]));
-                    music.setDefaultLength(length);
-                } catch (Throwable t) {
-                    throw new ParseException("Error reading default length");
-                }
-                break;
-
             case FIELD_METER:
-                MusicalLength meter = null;
-                if ("C".equals(token.text)) { // common time = 4/4 time
-                    meter = new MusicalLength(4, 4);
-                } else if ("C|".equals(token.text)) { // cut time = 2/2 time
-                    meter = new MusicalLength(2, 2);
-                } else {
-                    String[] meterParts = token.text.split("/");
-                    if (meterParts.length != 2) { // meter must be a fraction
-                                                  // with num and denom
-                        throw new ParseException("ERROR: Meter is invalid.");
-                    }
-                    meter = new MusicalLength(Integer.parseInt(meterParts[0]),
-                            Integer.parseInt(meterParts[1]));
-                }
-                music.setMeter(meter);
-                break;
-
             case FIELD_TEMPO:
-                music.setTempo(Integer.parseInt(token.text));
+                listener.onHeaderField(type(), text());
                 break;
 
-            case FIELD_KEY:
-                try {
-                    // do a keysignature lookup to find out which notes are
-                    // sharped or flatted
-                    music.setKeySignature(new KeySignature(token.text));
-                } catch (Throwable t) {
-                    throw new ParseException(t.getMessage());
-                }
+            case FIELD_KEY: // last field of the header
+                listener.onHeaderField(type(), text());
+                headerDone = headerOnly;
                 break;
 
             case FIELD_VOICE: // for all tokens with V:.
-                // Either the voice declaration in the header --> create blank
-                // Voices
-                // Or a new voice declared in the body
-
-                if (currentVoice == null) { // first Voice found
-                    currentVoice = new Voice(token.text); // create new Voice
-                                                          // and push to Stack
-                    currentState = new ParsingState();
-                    currentState.astStack.push(new Bar());
-                } else {
-                    // put currentVoice into Music
-                    music.addVoice(currentVoice.getName(), currentVoice);
-                    parsingStates.put(currentVoice.getName(), currentState);
-                    Voice newVoice = music.getVoice(token.text);
-                    if (newVoice != null) { // seen this Voice before
-                        currentVoice = newVoice;
-                        currentState = parsingStates
-                                .get(currentVoice.getName());
-                    } else { // never seen this Voice before
-                        currentVoice = new Voice(token.text);
-                        currentState = new ParsingState();
-                        currentState.astStack.push(new Bar());
-                    }
+                // a voice keeps the note that it was reading until it
+                // continues
+                String voice = text();
+                noteStates.put(currentVoice, currentNote);
+                currentVoice = voice;
+                currentNote = noteStates.get(voice);
+                if (currentNote == null) { // never seen this Voice before
+                    currentNote = new NoteState();
+                    noteStates.put(voice, currentNote);
                 }
+                listener.onVoiceSwitch(voice);
                 break;
 
             case NOTE_LETTER:
                 formNote();
-                if (token.text.length() != 1) {
+                if (textLength() != 1) {
                     throw new ParseException(
                             "ERROR: Multi-letter note encountered, this shouldn't occur!");
                 }
-                char pitchLetter = token.text.charAt(0);
-                Pitch pitch;
+                char pitchLetter = textCharAt(0);
+                currentNote.hasNote = true;
                 if (pitchLetter == 'z') {
-                    pitch = null;
+                    currentNote.letter = 'z';
+                    currentNote.octave = 0;
                 } else {
-                    pitch = new Pitch(Character.toUpperCase(pitchLetter));
-                    if (Character.isLowerCase(pitchLetter)) {
-                        pitch = pitch.octaveTranspose(1);
-                    }
+                    currentNote.letter = Character.toUpperCase(pitchLetter);
+                    currentNote.octave = Character.isLowerCase(pitchLetter) ? 1
+                            : 0;
                 }
-                currentState.currentNote = new Note(pitch, new MusicalLength(1,
-                        1));
+                currentNote.num = 1;
+                currentNote.denom = 1;
                 break;
 
             // assumes all octave modifiers come in single token
             case OCTAVE:
-                if (currentState.currentNote == null) {
+                if (!currentNote.hasNote) {
                     throw new ParseException(
                             "ERROR: Octave marker out of order");
                 }
-                pitch = currentState.currentNote.getPitch();
-                if (pitch == null) {
+                if (currentNote.letter == 'z') {
                     throw new ParseException(
                             "ERROR: Rests cannot have octave modifiers");
                 }
                 int modifier = 0;
-                switch (token.text.charAt(0)) {
+                switch (textCharAt(0)) {
                 case ',': // down octave
-                    if (currentState.currentNote.getPitch().getOctave() == 1) {
+                    if (currentNote.octave == 1) {
                         throw new ParseException(
                                 "ERROR: Cannot shift down on lower-case letter");
                     }
                     modifier = -1;
                     break;
                 case '\'': // up octave
-                    if (currentState.currentNote.getPitch().getOctave() == 0) {
+                    if (currentNote.octave == 0) {
                         throw new ParseException(
                                 "ERROR: Cannot shift up on upper-case letter");
                     }
@@ -258,44 +383,31 @@ public class Parser {
                     break;
                 default:
                     throw new ParseException("ERROR: Bad octave token \""
-                            + token.text + "\"!");
+                            + text() + "\"!");
                 }
-                pitch = currentState.currentNote.getPitch().octaveTranspose(
-                        modifier * token.text.length());
-                currentState.currentNote = new Note(pitch, new MusicalLength(1,
-                        1));
+                currentNote.octave += modifier * textLength();
+                currentNote.num = 1;
+                currentNote.denom = 1;
                 break;
 
             // Used in numerator and denominator of note and rest lengths
             case DIGIT:
-                if (currentState.currentNote == null) {
+                if (!currentNote.hasNote) {
                     throw new ParseException("ERROR: Digit token out of order");
                 }
-                if (currentState.fractionBarProcessed) {
-                    currentState.currentNote = new Note(
-                            currentState.currentNote.getPitch(),
-                            new MusicalLength(currentState.currentNote
-                                    .getLength().getNum(),
-                                    Integer.parseInt(token.text)));
+                if (currentNote.fractionBarProcessed) {
+                    currentNote.denom = intValue();
                 } else {
-                    currentState.currentNote = new Note(
-                            currentState.currentNote.getPitch(),
-                            new MusicalLength(Integer.parseInt(token.text),
-                                    currentState.currentNote.getLength()
-                                            .getDenom()));
+                    currentNote.num = intValue();
                 }
                 break;
 
             case FRACTION_BAR:
-                if (currentState.currentNote == null
-                        || currentState.fractionBarProcessed) {
+                if (!currentNote.hasNote || currentNote.fractionBarProcessed) {
                     throw new ParseException("ERROR: Fraction bar out of order");
                 }
-                currentState.fractionBarProcessed = true;
-                currentState.currentNote = new Note(
-                        currentState.currentNote.getPitch(), new MusicalLength(
-                                currentState.currentNote.getLength().getNum(),
-                                2));
+                currentNote.fractionBarProcessed = true;
+                currentNote.denom = 2;
                 // default with bar and no denom --> denom = 2
                 break;
 
@@ -303,7 +415,7 @@ public class Parser {
                              // natural
                 formNote();
                 int accidentalModifier = 0;
-                switch (token.text.charAt(0)) {
+                switch (textCharAt(0)) {
                 case '_':
                     accidentalModifier = -1;
                     break;
@@ -315,215 +427,180 @@ public class Parser {
                     break;
                 default:
                     throw new ParseException("ERROR: Bad accidental token '"
-                            + token.text + "'");
+                            + text() + "'");
                 }
-                currentState.currentAccidental = accidentalModifier
-                        * token.text.length();
-                currentState.hasAccidental = true;
+                currentNote.accidental = accidentalModifier * textLength();
+                currentNote.hasAccidental = true;
                 break;
 
             case BEGIN_MULTINOTE:
-                // set stack to have new Chord to push notes into
                 formNote();
-                currentState.astStack.push(new Chord());
+                listener.onChordStart();
                 break;
 
             case END_MULTINOTE:
-                // end chord
-                // put chord into object on stack below it
                 formNote();
-                if (currentState.astStack.peek().getMusicalType() != MusicalType.CHORD) {
-                    throw new ParseException(
-                            "ERROR: End chord character without a chord present.");
-                }
-                Chord chord = (Chord) currentState.astStack.pop();
-                currentState.astStack.peek().add(chord);
+                listener.onChordEnd();
                 break;
 
             case TUPLET:
                 formNote();
-                currentState.astStack.push(new Tuplet(Integer
-                        .parseInt(token.text)));
+                listener.onTuplet(intValue());
                 break;
 
             case BARLINE:
-                // do for all types of barlines, repeat or not
                 formNote();
-                if (currentState.astStack.peek().getMusicalType() != MusicalType.BAR) {
-                    throw new ParseException("ERROR: Invalid barline position.");
-                }
-                Bar bar = (Bar) currentState.astStack.pop();
-                if (currentVoice == null) {
-                    throw new ParseException(
-                            "ERROR: No Voice, but encountered Barline?");
-                }
-                // if there are repeats, add bar to repeat
-                if (currentState.currentRepeat != null) {
-                    if (bar.getElements().size() > 0) {
-                        switch (currentState.altRepeat) {
-                        case 0:
-                            currentState.currentRepeat.addNormalBar(bar);
-                            break;
-                        case 1:
-                            currentState.currentRepeat.addToFirstEnding(bar);
-                            break;
-                        case 2:
-                            currentState.currentRepeat.addToSecondEnding(bar);
-                            break;
-                        default:
-                            throw new ParseException(
-                                    "ERROR: Invalid n-th repeat state");
-                        }
-                    }
-                } else {
-                    currentState.barList.add(bar);
-                }
-                currentState.astStack.push(new Bar());
-
-                if (token.text.equals("|:")) { // begin repeat
-                    addAllToCurrentVoice();
-                    currentState.currentRepeat = new Repeat();
-                    currentVoice.seeBeginRepeat();
-                    break;
-                }
-
-                if (token.text.equals(":|")) {
-                    // if only :| without |: --> repeat from beginning of voice
-                    if (currentState.currentRepeat == null) {
-                        // if no currentRepeat, create one
-                        if (!currentVoice.hasBeginRepeat()) {
-                            currentState.currentRepeat = new Repeat();
-                            for (Bar b : currentState.barList) {
-                                currentState.currentRepeat.addNormalBar(b);
-                            }
-                            currentState.barList.clear();
-                        } else {
-                            throw new ParseException(
-                                    "ERROR: Invalid repeat token.");
-                        }
-                    }
-                    currentVoice.add(currentState.currentRepeat);
-                    if (currentState.altRepeat == 0) {
-                        currentState.currentRepeat = null;
-                    }
-                }
-
-                // double bars - marker for begin repeat if no |: barline
-                if (token.text.equals("||") || token.text.equals("|]")) {
-                    currentState.currentRepeat = null;
-                    addAllToCurrentVoice();
-                }
+                listener.onBarline(barline());
                 break;
 
             case NTH_REPEAT:
-                currentState.altRepeat = Integer.parseInt(token.text
-                        .substring(1));
-                if (currentState.altRepeat == 1) {
-                    if (currentState.currentRepeat == null) {
-                        currentState.currentRepeat = new Repeat();
-                        for (Bar ms : currentState.barList) {
-                            currentState.currentRepeat.addNormalBar(ms);
-                        }
-                        currentState.barList.clear();
-                    }
-                } else if (currentState.altRepeat == 2) {
-                    // All good.
-                } else {
-                    throw new ParseException(
-                            "ERROR: Higher-order (>2) Nth repeat encountered!");
-                }
+                listener.onNthRepeat(Integer.parseInt(text().substring(1)));
             }
         }
+    }
 
-        formNote(); // form note with modifier, push to appropriate object
-        if (currentState.astStack.peek().getMusicalType() != MusicalType.BAR) {
-            throw new ParseException("ERROR: Invalid barline position.");
+    /**
+     * Finish off the parse at the end of the tokens.
+     */
+    private void endParse() throws ParseException {
+        formNote(); // pass on the last note
+        listener.onEnd();
+    }
+
+    /**
+     * Move on to the next token.
+     * 
+     * @return false iff there are no more tokens
+     * @throws ParseException
+     *             if the lexer fails to produce the next token
+     */
+    private boolean nextToken() throws ParseException {
+        if (tokens != null) {
+            index++;
+            return index < tokens.size();
         }
-        if (currentState.currentRepeat != null) {
-            // unclosed repeat - really shouldn't happen, but we will extend the
-            // repeat to the end
-            switch (currentState.altRepeat) {
-            case 0:
-                currentState.currentRepeat
-                        .addNormalBar((Bar) currentState.astStack.pop());
-                break;
-            case 1:
-                currentState.currentRepeat
-                        .addToFirstEnding((Bar) currentState.astStack.pop());
-                break;
-            case 2:
-                currentState.currentRepeat
-                        .addToSecondEnding((Bar) currentState.astStack.pop());
-                break;
-            default:
-                throw new ParseException("ERROR: Invalid n-th repeat state");
+        try {
+            if (!lexer.hasNext()) {
+                return false;
             }
-            currentVoice.add(currentState.currentRepeat);
-        } else {
-            Bar top = (Bar) currentState.astStack.pop();
-            if (top.getElements().size() > 0) {
-                currentVoice.add(top);
+            token = lexer.next();
+            return true;
+        } catch (Throwable t) {
+            throw new ParseException(t.getMessage());
+        }
+    }
+
+    /**
+     * @return the Type of the current token
+     */
+    private Type type() {
+        return (tokens != null) ? tokens.getType(index) : token.type;
+    }
+
+    /**
+     * @return the text of the current token
+     */
+    private String text() {
+        return (tokens != null) ? tokens.getText(index) : token.getText();
+    }
+
+    /**
+     * @return true iff the text of the current token is s
+     */
+    private boolean textEquals(String s) {
+        if (textLength() != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (textCharAt(i) != s.charAt(i)) {
+                return false;
             }
         }
-        addAllToCurrentVoice();
-        music.addVoice(currentVoice.getName(), currentVoice);
-        return this.music;
+        return true;
+    }
+
+    /**
+     * @return the length of the text of the current token
+     */
+    private int textLength() {
+        return (tokens != null) ? tokens.getLength(index) : token.length();
+    }
+
+    /**
+     * @return a character of the text of the current token
+     */
+    private char textCharAt(int i) {
+        return (tokens != null) ? tokens.charAt(index, i) : token.charAt(i);
+    }
+
+    /**
+     * @return the number that the current DIGIT or TUPLET token stands for
+     */
+    private int intValue() {
+        return (tokens != null) ? tokens.getValue(index) : token.intValue();
+    }
+
+    /**
+     * @return true iff a token of the given type can be part of the header
+     */
+    private static boolean inHeader(Type type) {
+        switch (type) {
+        case FIELD_INDEX_NUMBER:
+        case FIELD_TITLE:
+        case FIELD_COMPOSER_NAME:
+        case FIELD_DEFAULT_LENGTH:
+        case FIELD_METER:
+        case FIELD_TEMPO:
+        case FIELD_KEY:
+        case FIELD_VOICE:
+        case COMMENT:
+            return true;
+        default:
+            return false;
+        }
     }
 
-    private void addAllToCurrentVoice() {
-        for (Bar b : currentState.barList) {
-            if (b.getElements().size() == 0) {
-                continue;
+    /**
+     * @return the text of the current BARLINE token, without copying it if
+     *         it is one of the barlines of the grammar
+     */
+    private String barline() {
+        for (String b : BARLINES) {
+            if (textEquals(b)) {
+                return b;
             }
-            currentVoice.add(b);
         }
-        currentState.barList.clear();
+        return text();
     }
 
     /**
-     * takes current ParsingState and modifies the note with accidentals.
-     * Inserts note into top of stack whether it be chord, tuplet, or bar
+     * takes the NoteState of the current voice and passes the note, with its
+     * accidental, on to the listener.
      * 
      * @throws ParseException
      */
     private void formNote() throws ParseException {
-        if (currentState.currentNote != null) {
-            if (currentState.hasAccidental) {
-                if (currentState.currentNote.getPitch() == null) {
+        if (currentNote.hasNote) {
+            if (currentNote.letter == 'z') {
+                if (currentNote.hasAccidental) {
                     throw new ParseException(
                             "ERROR: Rests cannot have accidental modifiers.");
                 }
-                Stack<MusicalElementContainer> mecStack = new Stack<MusicalElementContainer>();
-                while (currentState.astStack.peek().getMusicalType() != MusicalType.BAR
-                        && currentState.astStack.peek().getMusicalType() != MusicalType.TUPLET) {
-                    mecStack.push(currentState.astStack.pop());
+                listener.onRest(currentNote.num, currentNote.denom);
+            } else {
+                Pitch pitch = Pitch.valueOf(currentNote.letter);
+                if (currentNote.octave != 0) {
+                    pitch = pitch.octaveTranspose(currentNote.octave);
                 }
-                currentState.astStack.peek().add(
-                        new Accidental(currentState.currentNote.getPitch(),
-                                currentState.currentAccidental));
-                while (!mecStack.empty()) {
-                    currentState.astStack.push(mecStack.pop());
+                if (currentNote.hasAccidental) {
+                    listener.onAccidental(pitch, currentNote.accidental);
                 }
+                listener.onNote(pitch, currentNote.num, currentNote.denom);
             }
-            if (currentState.currentNote.isRest()) {
-                currentState.astStack.peek().add(
-                        new Rest(currentState.currentNote.getLength()));
-            } else {
-                currentState.astStack.peek().add(currentState.currentNote);
-            }
-            currentState.currentNote = null;
-            currentState.currentAccidental = 0;
-            currentState.hasAccidental = false;
-            currentState.fractionBarProcessed = false;
-        }
-
-        if (currentState.astStack.size() > 0
-                && currentState.astStack.peek().getMusicalType() == MusicalType.TUPLET) {
-            Tuplet tuplet = (Tuplet) currentState.astStack.peek();
-            if (tuplet.getCurrentNumNotes() == tuplet.getSize()) {
-                currentState.astStack.pop();
-                currentState.astStack.peek().add(tuplet);
-            }
+            currentNote.hasNote = false;
+            currentNote.accidental = 0;
+            currentNote.hasAccidental = false;
+            currentNote.fractionBarProcessed = false;
         }
     }
 }
@@ -0,0 +1,151 @@
+package player;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import music.ast.Music;
+import player.Lexer.TokenMismatchException;
+import player.Parser.ParseException;
+
+/**
+ * A collection of tunes in one input, each of which begins with an X: field
+ * at the start of a line. Anything before the first X: belongs to the first
+ * tune. The tunes are lexed and parsed independently, so a songbook can be
+ * parsed by as many threads as there are tunes.
+ *
+ */
+public class Songbook {
+
+    private Songbook() {
+        // only static methods
+    }
+
+    /**
+     * Split a songbook into its tunes, without copying the input.
+     *
+     * @param input
+     *            The whole songbook (not modified)
+     * @return The text of every tune, in the order of the input; at least one
+     */
+    public static List<CharSequence> split(CharSequence input) {
+        List<CharSequence> tunes = new ArrayList<CharSequence>();
+        int length = input.length();
+        int start = 0;
+        boolean inTune = false;
+        int lineStart = 0;
+        while (lineStart < length) {
+            int i = lineStart;
+            while (i < length
+                    && (input.charAt(i) == ' ' || input.charAt(i) == '\t')) {
+                i++;
+            }
+            if (i + 1 < length && input.charAt(i) == 'X'
+                    && input.charAt(i + 1) == ':') {
+                if (inTune) {
+                    tunes.add(view(input, start, lineStart));
+                    start = lineStart;
+                }
+                inTune = true;
+            }
+            while (i < length && input.charAt(i) != '\n') {
+                i++;
+            }
+            lineStart = i + 1;
+        }
+        tunes.add(view(input, start, length));
+        return tunes;
+    }
+
+    /**
+     * @return the characters of the input between start and end, as a view
+     *         where possible (String.subSequence copies)
+     */
+    private static CharSequence view(CharSequence input, int start, int end) {
+        if (input instanceof String) {
+            return CharBuffer.wrap(input, start, end);
+        }
+        return input.subSequence(start, end);
+    }
+
+    /**
+     * Parse every tune of a songbook, on a thread pool with a thread for
+     * every processor.
+     *
+     * @see #parse(CharSequence, ExecutorService)
+     */
+    public static List<Music> parse(CharSequence input) throws ParseException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime
+                .getRuntime().availableProcessors());
+        try {
+            return parse(input, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Parse every tune of a songbook into its own Music, with one task per
+     * tune on the given executor.
+     *
+     * @param input
+     *            The whole songbook (not modified). It is read by several
+     *            threads at once, see {@link Lexer#tokenize()}
+     * @param executor
+     *            Runs the tasks; it is not shut down
+     * @return The Music of every tune, in the order of the input
+     * @throws ParseException
+     *             if a tune cannot be lexed or parsed. The error of the first
+     *             such tune is reported, along with its position in the
+     *             songbook.
+     */
+    public static List<Music> parse(CharSequence input,
+            ExecutorService executor) throws ParseException {
+        List<Future<Music>> results = new ArrayList<Future<Music>>();
+        for (final CharSequence tune : split(input)) {
+            results.add(executor.submit(new Callable<Music>() {
+                public Music call() throws ParseException {
+                    return parseTune(tune);
+                }
+            }));
+        }
+
+        List<Music> tunes = new ArrayList<Music>(results.size());
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    tunes.add(results.get(i).get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ParseException) {
+                        throw new ParseException("Tune " + (i + 1) + ": "
+                                + e.getCause().getMessage());
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ParseException("Interrupted while parsing");
+        } finally {
+            for (Future<Music> result : results) {
+                result.cancel(false); // no-op for the tunes already parsed
+            }
+        }
+        return tunes;
+    }
+
+    private static Music parseTune(CharSequence tune) throws ParseException {
+        TokenBuffer tokens;
+        try {
+            tokens = new Lexer(tune).tokenize();
+        } catch (TokenMismatchException e) {
+            throw new ParseException(e.getMessage());
+        }
+        return new Parser(tokens).getMusic();
+    }
+}
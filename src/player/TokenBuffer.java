@@ -0,0 +1,172 @@
+package player;
+
+/**
+ * The tokens of a whole input, stored as parallel primitive arrays rather
+ * than as one Token object per token. Token i has the type ordinal
+ * types[i], and its text is the lengths[i] characters of the input that start
+ * at starts[i]. For DIGIT and TUPLET tokens, values[i] holds the number that
+ * the text stands for.
+ * 
+ * A TokenBuffer is produced by {@link Lexer#tokenize()} and consumed by
+ * {@link Parser#Parser(TokenBuffer)}. It is not modified by parsing, so the
+ * same buffer can be parsed any number of times.
+ * 
+ */
+public class TokenBuffer {
+
+    private static final Type[] TYPES = Type.values();
+
+    private final CharSequence source;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] values;
+    private int size;
+
+    /**
+     * Construct an empty buffer for the tokens of the given input.
+     * 
+     * @param source
+     *            The input that the tokens refer to
+     * @param capacity
+     *            Number of tokens to make room for up front
+     */
+    TokenBuffer(CharSequence source, int capacity) {
+        this.source = source;
+        this.types = new int[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.values = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Append a token.
+     */
+    void add(Type type, int start, int end, int value) {
+        if (size == types.length) {
+            grow(size + 1);
+        }
+        types[size] = type.ordinal();
+        starts[size] = start;
+        lengths[size] = end - start;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Append all of the tokens of another buffer over the same input.
+     */
+    void addAll(TokenBuffer other) {
+        addRange(other, 0, other.size);
+    }
+
+    /**
+     * Append the tokens from up to end of another buffer over the same input.
+     */
+    void addRange(TokenBuffer other, int from, int end) {
+        assert other.source == source;
+        int count = end - from;
+        if (size + count > types.length) {
+            grow(size + count);
+        }
+        System.arraycopy(other.types, from, types, size, count);
+        System.arraycopy(other.starts, from, starts, size, count);
+        System.arraycopy(other.lengths, from, lengths, size, count);
+        System.arraycopy(other.values, from, values, size, count);
+        size += count;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, types.length * 2);
+        types = copyOf(types, capacity);
+        starts = copyOf(starts, capacity);
+        lengths = copyOf(lengths, capacity);
+        values = copyOf(values, capacity);
+    }
+
+    private int[] copyOf(int[] array, int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * @return The input that the tokens refer to
+     */
+    public CharSequence getSource() {
+        return source;
+    }
+
+    /**
+     * @return The number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The ordinal of the Type of token i
+     */
+    public int getTypeOrdinal(int i) {
+        return types[i];
+    }
+
+    /**
+     * @return The Type of token i
+     */
+    public Type getType(int i) {
+        return TYPES[types[i]];
+    }
+
+    /**
+     * @return The offset of the text of token i in the input
+     */
+    public int getStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * @return The number of characters in the text of token i
+     */
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * @return The character at the given index of the text of token i
+     */
+    public char charAt(int i, int index) {
+        return source.charAt(starts[i] + index);
+    }
+
+    /**
+     * @return The number that a DIGIT or TUPLET token i stands for
+     */
+    public int getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return The text of token i, or null if its type carries no text
+     */
+    public String getText(int i) {
+        switch (getType(i)) {
+        case BEGIN_MULTINOTE:
+        case END_MULTINOTE:
+        case FRACTION_BAR:
+        case EOF:
+            return null;
+        default:
+            return source.subSequence(starts[i], starts[i] + lengths[i])
+                    .toString();
+        }
+    }
+
+    /**
+     * @return Token i, as it would have been produced by the Lexer iterator
+     */
+    public Lexer.Token getToken(int i) {
+        return new Lexer.Token(getType(i), getText(i));
+    }
+}
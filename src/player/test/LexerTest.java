@@ -2,14 +2,24 @@ package player.test;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
 import player.Lexer;
+import player.MappedInput;
+import player.TokenBuffer;
 import player.Lexer.TokenMismatchException;
 import player.Type;
 
@@ -180,6 +190,35 @@ public class LexerTest {
         }
     }
 
+    @Test(expected = TokenMismatchException.class)
+    public void FailtoosharpTest() throws TokenMismatchException {
+        Lexer l = new Lexer("^^^A");
+        List<Lexer.Token> expectedResult = new ArrayList<Lexer.Token>();
+        expectedResult.add(null);
+        runTest(l, expectedResult.iterator());
+    }
+
+    @Test(expected = TokenMismatchException.class)
+    public void FailtooflatTest() throws TokenMismatchException {
+        Lexer l = new Lexer("___A");
+        List<Lexer.Token> expectedResult = new ArrayList<Lexer.Token>();
+        expectedResult.add(null);
+        runTest(l, expectedResult.iterator());
+    }
+
+    @Test(expected = TokenMismatchException.class)
+    public void FailoctaveupdownTest() throws TokenMismatchException {
+        String inputs[] = { "a'," };
+        for (String input : inputs) {
+            Lexer l = new Lexer(input);
+            List<Lexer.Token> expectedResult = new ArrayList<Lexer.Token>();
+            expectedResult.add(new Lexer.Token(Type.NOTE_LETTER, input
+                    .substring(0, 1)));
+            expectedResult.add(null);
+            runTest(l, expectedResult.iterator());
+        }
+    }
+
     @Test
     public void RepeatTest() throws TokenMismatchException {
         String inputs[] = { "|:a:|" };
@@ -217,4 +256,138 @@ public class LexerTest {
         runTest(l, expectedResult.iterator());
     }
 
+    @Test
+    public void charArrayInputTest() throws TokenMismatchException {
+        String input = "T:title % comment\n[Ac]/2 |]";
+        List<Lexer.Token> expectedResult = new ArrayList<Lexer.Token>();
+        expectedResult.add(new Lexer.Token(Type.FIELD_TITLE, "title"));
+        expectedResult.add(new Lexer.Token(Type.BEGIN_MULTINOTE));
+        expectedResult.add(new Lexer.Token(Type.NOTE_LETTER, "A"));
+        expectedResult.add(new Lexer.Token(Type.NOTE_LETTER, "c"));
+        expectedResult.add(new Lexer.Token(Type.END_MULTINOTE));
+        expectedResult.add(new Lexer.Token(Type.FRACTION_BAR));
+        expectedResult.add(new Lexer.Token(Type.DIGIT, "2"));
+        expectedResult.add(new Lexer.Token(Type.BARLINE, "|]"));
+        runTest(new Lexer(input.toCharArray()), expectedResult.iterator());
+    }
+
+    @Test
+    public void unterminatedLineTest() throws TokenMismatchException {
+        List<Lexer.Token> expectedResult = new ArrayList<Lexer.Token>();
+        expectedResult.add(new Lexer.Token(Type.FIELD_KEY, "C"));
+        expectedResult.add(new Lexer.Token(Type.NOTE_LETTER, "a"));
+        expectedResult.add(new Lexer.Token(Type.COMMENT, " no newline"));
+        runTest(new Lexer("K:C\na% no newline"), expectedResult.iterator());
+    }
+
+    @Test
+    public void readerInputTest() throws TokenMismatchException {
+        StringBuilder title = new StringBuilder();
+        while (title.length() < 20000) {
+            title.append("Long title ");
+        }
+        StringBuilder input = new StringBuilder();
+        input.append("T:" + title + "\n");
+        List<Lexer.Token> expectedResult = new ArrayList<Lexer.Token>();
+        expectedResult.add(new Lexer.Token(Type.FIELD_TITLE, title.toString()
+                .trim()));
+        while (input.length() < 50000) {
+            input.append("^C,/4 |: ");
+            expectedResult.add(new Lexer.Token(Type.ACCIDENTAL, "^"));
+            expectedResult.add(new Lexer.Token(Type.NOTE_LETTER, "C"));
+            expectedResult.add(new Lexer.Token(Type.OCTAVE, ","));
+            expectedResult.add(new Lexer.Token(Type.FRACTION_BAR));
+            expectedResult.add(new Lexer.Token(Type.DIGIT, "4"));
+            expectedResult.add(new Lexer.Token(Type.BARLINE, "|:"));
+        }
+        runTest(new Lexer(new StringReader(input.toString())),
+                expectedResult.iterator());
+    }
+
+    @Test
+    public void mappedInputTest() throws IOException {
+        File file = File.createTempFile("mapped", ".abc");
+        file.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        out.write("T:F\u00fcr Elise\nC:Beethoven % \u266b\n=A'|");
+        out.close();
+        List<Lexer.Token> expectedResult = new ArrayList<Lexer.Token>();
+        expectedResult.add(new Lexer.Token(Type.FIELD_TITLE, "F\u00fcr Elise"));
+        expectedResult.add(new Lexer.Token(Type.FIELD_COMPOSER_NAME,
+                "Beethoven"));
+        expectedResult.add(new Lexer.Token(Type.ACCIDENTAL, "="));
+        expectedResult.add(new Lexer.Token(Type.NOTE_LETTER, "A"));
+        expectedResult.add(new Lexer.Token(Type.OCTAVE, "'"));
+        expectedResult.add(new Lexer.Token(Type.BARLINE, "|"));
+        runTest(new Lexer(MappedInput.map(file.getPath())),
+                expectedResult.iterator());
+    }
+
+    @Test
+    public void sharedTokenTest() throws TokenMismatchException {
+        Iterator<Lexer.Token> li = new Lexer("C|C| (12 M: 3/4 ").iterator();
+        Lexer.Token note = li.next();
+        Lexer.Token barline = li.next();
+        assertSame(note, li.next());
+        assertSame(barline, li.next());
+        Lexer.Token tuplet = li.next();
+        assertEquals(new Lexer.Token(Type.TUPLET, "12"), tuplet);
+        assertEquals(12, tuplet.intValue());
+        Lexer.Token meter = li.next();
+        assertEquals(3, meter.length());
+        assertEquals('/', meter.charAt(1));
+        assertEquals("3/4", meter.getText());
+        assertFalse(li.hasNext());
+    }
+
+    @Test
+    public void tokenBufferTest() throws TokenMismatchException {
+        String input = "X: 1\nK: C\n[C_E]/2 |: (3 z2 :| [2 c'\n";
+        TokenBuffer tokens = new Lexer(input).tokenize();
+        Iterator<Lexer.Token> li = new Lexer(input).iterator();
+        int i = 0;
+        while (li.hasNext()) {
+            assertEquals(li.next(), tokens.getToken(i++));
+        }
+        assertEquals(i, tokens.size());
+        assertEquals(Type.TUPLET, tokens.getType(10));
+        assertEquals(3, tokens.getValue(10));
+    }
+
+    @Test
+    public void parallelTokenBufferTest() throws TokenMismatchException {
+        // long enough to be lexed in chunks
+        StringBuilder music = new StringBuilder("X: 1\nK: C\n");
+        while (music.length() < (1 << 21)) {
+            music.append("[C_E]/2 |: (3 z2 :| [2 c'4 % comment | C:\nV: 2\n");
+        }
+        String input = music.toString();
+        TokenBuffer tokens = new Lexer(input).tokenize();
+        Iterator<Lexer.Token> li = new Lexer(input).iterator();
+        int i = 0;
+        while (li.hasNext()) {
+            assertEquals(li.next(), tokens.getToken(i++));
+        }
+        assertEquals(i, tokens.size());
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            TokenBuffer pooled = new Lexer(input).tokenize(pool);
+            assertEquals(tokens.size(), pooled.size());
+            for (i = 0; i < tokens.size(); i++) {
+                assertEquals(tokens.getToken(i), pooled.getToken(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        String bad = input + "^^^C |\n" + input;
+        String message = null;
+        try {
+            new Lexer(bad).tokenize();
+        } catch (TokenMismatchException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Note is way too sharp!C |\n" + input, message);
+    }
+
 }
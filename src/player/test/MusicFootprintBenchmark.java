@@ -0,0 +1,67 @@
+package player.test;
+
+import music.ast.Canonicalizer;
+import music.ast.CompactMusic;
+import music.ast.Music;
+import player.Lexer;
+import player.Parser;
+import player.Parser.ParseException;
+
+/**
+ * Compares the heap taken up by the Music of a synthetic tune of a million
+ * notes with that of its CompactMusic, on the heap and off it, and with that
+ * of the Music once its identical bars are shared. Not a JUnit
+ * test, run it with enough heap for the Music, e.g.
+ *
+ * java -Xmx1g player.test.MusicFootprintBenchmark
+ *
+ */
+public class MusicFootprintBenchmark {
+
+    private static final int BARS = 100000;
+    // 10 notes: plain, with accidentals, in a chord and in a tuplet
+    private static final String BAR = "C D ^F G [CE] (3AB=c d2 |\n";
+
+    public static void main(String[] args) throws ParseException {
+        StringBuilder tune = new StringBuilder("X: 1\nT: synthetic\nK: C\n");
+        for (int i = 0; i < BARS; i++) {
+            tune.append(BAR);
+        }
+        int notes = BARS * 10;
+
+        long base = usedHeap();
+        Music music = new Parser(new Lexer(tune).tokenize()).getMusic();
+        long ast = usedHeap() - base;
+        CompactMusic compact = CompactMusic.of(music);
+        long heap = usedHeap() - base - ast;
+        CompactMusic direct = CompactMusic.of(music, true);
+        long offHeap = usedHeap() - base - ast - heap;
+        long before = usedHeap();
+        Canonicalizer canonicalizer = new Canonicalizer();
+        canonicalizer.canonicalize(music);
+        int distinct = canonicalizer.size();
+        canonicalizer = null;
+        long shared = ast - (before - usedHeap());
+
+        System.out.println(music.getTitle() + ": " + notes + " notes, "
+                + compact.size() + " elements, " + tune.length() + " chars");
+        print("Music", ast, notes);
+        print("Music, canonicalized (" + distinct + " distinct nodes)", shared, notes);
+        print("CompactMusic", heap, notes);
+        print("CompactMusic, direct (heap)", offHeap, notes);
+        print("CompactMusic, direct (off heap)", direct.getColumnBytes(), notes);
+    }
+
+    private static void print(String what, long bytes, int notes) {
+        System.out.println(what + ": " + bytes + " bytes, " + bytes / notes
+                + " bytes per note");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,73 @@
+package player.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+
+import player.Lexer;
+import player.Parser;
+import player.Parser.ParseException;
+import player.TokenBuffer;
+import player.Type;
+
+/**
+ * Measures how many bytes the parser allocates for every note of a piece, on
+ * HotSpot JVMs that count the bytes allocated by each thread. Not a JUnit test,
+ * run it with the abc file to measure, e.g.
+ *
+ * java player.test.ParserAllocationBenchmark sample_abc/invention.abc
+ *
+ */
+public class ParserAllocationBenchmark {
+
+    private static final int WARMUP = 2000;
+    private static final int RUNS = 1000;
+
+    public static void main(String[] args) throws IOException, ParseException {
+        String file = (args.length > 0) ? args[0] : "sample_abc/invention.abc";
+        String input = read(file);
+
+        TokenBuffer tokens = new Lexer(input).tokenize();
+        int notes = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.getType(i) == Type.NOTE_LETTER) {
+                notes++;
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) {
+            new Parser(tokens).getMusic();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < RUNS; i++) {
+            new Parser(tokens).getMusic();
+        }
+        long bytes = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.println(file + ": " + notes + " notes and rests");
+        System.out.println("parse: " + bytes / RUNS + " bytes per piece, "
+                + bytes / RUNS / notes + " bytes per note");
+    }
+
+    private static String read(String file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(new File(
+                file)), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
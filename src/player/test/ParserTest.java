@@ -1,17 +1,56 @@
 package player.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
+import music.ast.Bar;
+import music.ast.Canonicalizer;
+import music.ast.Chord;
+import music.ast.CompactMusic;
 import music.ast.Music;
+import music.ast.MusicSequence;
+import music.ast.MusicalElement;
+import music.ast.MusicalLength;
+import music.ast.MusicalType;
+import music.ast.Note;
+import music.ast.Repeat;
+import music.ast.Tuplet;
+import music.program.Program;
+import music.utils.Rational;
+import music.visitor.FusedAnalysisVisitor;
+import music.visitor.MusicalWellFormednessVisitor;
+import music.visitor.OptimalTicksPerQuarterNoteVisitor;
+import music.visitor.TranslateToSequenceVisitor;
+import sound.Pitch;
+import sound.SequencePlayer;
 
 import org.junit.Test;
 
+import player.IncrementalParser;
+import player.Lexer;
 import player.Lexer.Token;
+import player.Main;
+import player.ParseCache;
+import player.MusicListener;
 import player.Parser;
 import player.Parser.ParseException;
+import player.Songbook;
+import player.TokenBuffer;
 import player.Type;
 
 public class ParserTest {
@@ -449,4 +488,616 @@ public class ParserTest {
 	    String expected = "Music[Voice[Repeat[Bar[Note[pitch=C,length=1/1],Note[pitch=D,length=1/1]],Bar[Note[pitch=E,length=1/1],Note[pitch=F,length=1/1]][1 Bar[Note[pitch=C,length=1/1],Note[pitch=D,length=1/1]]] 2[ Bar[Note[pitch=A,length=1/1],Note[pitch=B,length=1/1]],Bar[Note[pitch=c,length=1/1]]]],Bar[Note[pitch=d,length=1/1]]]]";
         assertEquals(expected, m.toString());
     }
+
+    @Test
+    public void testThirdEnding() throws ParseException {
+        List<Token> tokens = new ArrayList<Token>();
+        tokens.add(new Token(Type.NOTE_LETTER, "C"));
+        tokens.add(new Token(Type.BARLINE, "|"));
+        tokens.add(new Token(Type.NTH_REPEAT, "[1"));
+        tokens.add(new Token(Type.NOTE_LETTER, "D"));
+        tokens.add(new Token(Type.BARLINE, ":|"));
+        tokens.add(new Token(Type.NTH_REPEAT, "[2"));
+        tokens.add(new Token(Type.NOTE_LETTER, "E"));
+        tokens.add(new Token(Type.BARLINE, ":|"));
+        tokens.add(new Token(Type.NTH_REPEAT, "[3"));
+        tokens.add(new Token(Type.NOTE_LETTER, "F"));
+        tokens.add(new Token(Type.BARLINE, "|]"));
+        Music m = new Parser(tokens.iterator()).getMusic();
+        Repeat repeat = (Repeat) m.getVoice("default").getElements().get(0);
+        assertEquals(3, repeat.getEndingCount());
+
+        // played as C D C E C F, without copying the bars
+        StringBuilder played = new StringBuilder();
+        for (int i = 0; i < repeat.getApparentSize(); i++) {
+            Note note = (Note) repeat.getApparentBar(i).getElements().get(0);
+            played.append(note.getPitch());
+        }
+        assertEquals("CDCECF", played.toString());
+        assertSame(repeat.getApparentBar(0), repeat.getApparentElments()
+                .get(2));
+        assertEquals(6, repeat.getApparentElments().size());
+        assertEquals(m.toString(), CompactMusic.of(m).asMusic().toString());
+    }
+
+    @Test
+    public void testListenerEvents() throws ParseException {
+        final StringBuilder events = new StringBuilder();
+        MusicListener listener = new MusicListener() {
+            public void onHeaderField(Type field, String value) {
+                events.append(field + "=" + value + " ");
+            }
+
+            public void onVoiceSwitch(String voice) {
+                events.append("V" + voice + " ");
+            }
+
+            public void onAccidental(Pitch pitch, int value) {
+                events.append("acc" + pitch + value + " ");
+            }
+
+            public void onNote(Pitch pitch, int num, int denom) {
+                events.append(pitch + "" + num + "/" + denom + " ");
+            }
+
+            public void onRest(int num, int denom) {
+                events.append("z" + num + "/" + denom + " ");
+            }
+
+            public void onChordStart() {
+                events.append("[ ");
+            }
+
+            public void onChordEnd() {
+                events.append("] ");
+            }
+
+            public void onTuplet(int n) {
+                events.append("(" + n + " ");
+            }
+
+            public void onBarline(String kind) {
+                events.append(kind + " ");
+            }
+
+            public void onNthRepeat(int n) {
+                events.append("[" + n + " ");
+            }
+
+            public void onEnd() {
+                events.append("end");
+            }
+        };
+        new Parser(new Lexer("T: t\nV: 1\n[C_E/4] |: z2 (3c'de :| [2 C\n")
+                .tokenize()).parse(listener);
+        String expected = "FIELD_TITLE=t V1 [ C1/1 accE-1 E1/4 ] |: z2/1 (3 c'1/1 d1/1 e1/1 :| [2 C1/1 end";
+        assertEquals(expected, events.toString());
+    }
+
+    @Test
+    public void testSongbook() throws ParseException {
+        String songbook = "% preamble\nX: 1\nT: one\nK: C\nC D |\n\n"
+                + "X: 2\nT: two\nK: G\nE F |\n  X: 3\nT: three\nK: D\nG |\n";
+        assertEquals(3, Songbook.split(songbook).size());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Music> tunes = Songbook.parse(songbook, executor);
+            assertEquals(3, tunes.size());
+            assertEquals("one", tunes.get(0).getTitle());
+            assertEquals("two", tunes.get(1).getTitle());
+            assertEquals("three", tunes.get(2).getTitle());
+            assertEquals("Music[Voice[Bar[Note[pitch=G,length=1/1]]]]", tunes
+                    .get(2).toString());
+
+            String message = null;
+            try {
+                Songbook.parse(songbook + "X: 4\nK: C\nC ]\n", executor);
+            } catch (ParseException e) {
+                message = e.getMessage();
+            }
+            assertEquals(
+                    "Tune 4: ERROR: End chord character without a chord present.",
+                    message);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testHeaderOnly() throws ParseException {
+        // the body is never lexed, so its bad token goes unnoticed
+        String input = "X: 7\nT: head\nC: someone\nM: 3/4\nL: 1/8\nQ: 120\n"
+                + "V: 1\nV: 2\nK: D\nV: 1\n^^^C |\n";
+        Music header = new Parser(new Lexer(input).iterator()).getHeader();
+        assertEquals("7", header.getIndexNumber());
+        assertEquals("head", header.getTitle());
+        assertEquals("someone", header.getComposer());
+        assertEquals(3, header.getMeter().getNum());
+        assertEquals(8, header.getDefaultLength().getDenom());
+        assertEquals(60, header.getTempo()); // in quarter notes
+        assertEquals(3, header.getVoices().size()); // and "default"
+        assertEquals(0, header.getVoice("2").getElements().size());
+    }
+
+    @Test
+    public void testVoiceParallel() throws ParseException {
+        String input = "X: 1\nK: C\nV: 1\nV: 2\nV: 1\nC D |: E F :|\nV: 2\n(3zAB c2 |\n"
+                + "Q: 60\nV: 1\n[1 G ||\nV: 2\n[CE] |]\n";
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            TokenBuffer tokens = new Lexer(input).tokenize();
+            Music expected = new Parser(tokens).getMusic();
+            Music music = new Parser(tokens).getMusic(executor);
+            assertEquals(expected.toString(), music.toString());
+            assertEquals(expected.getTempo(), music.getTempo());
+
+            // the error at the earliest token wins, whichever voice it is in
+            tokens = new Lexer(input + "V: 2\nc, |\nV: 1\n] |\n").tokenize();
+            String message = null;
+            try {
+                new Parser(tokens).getMusic(executor);
+            } catch (ParseException e) {
+                message = e.getMessage();
+            }
+            assertEquals("ERROR: Cannot shift down on lower-case letter",
+                    message);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIncremental() throws ParseException {
+        String input = "X: 1\nK: C\nC D | E F | G A ||\nV: 1\n(3zAB c2 | d |\n";
+        IncrementalParser parser = new IncrementalParser(input);
+        Music music = parser.getMusic();
+        assertEquals(1, parser.getFullParses());
+
+        // within a bar, and across two bars
+        int bar = input.indexOf("E F");
+        assertSame(music, parser.edit(bar, bar + 3, "E2 ^F"));
+        assertEquals(parse(parser.getText()), music.toString());
+        bar = parser.getText().toString().indexOf("c2");
+        parser.edit(bar, bar + 6, "c | [CE] =c | % two\n");
+        assertEquals(parse(parser.getText()), music.toString());
+        assertEquals(1, parser.getFullParses());
+
+        // a repeat needs the whole text
+        bar = parser.getText().toString().indexOf("| G");
+        music = parser.edit(bar, bar, ":");
+        assertEquals(parse(parser.getText()), music.toString());
+        assertEquals(2, parser.getFullParses());
+
+        // and so does an edit after an error
+        String message = null;
+        try {
+            parser.edit(bar, bar + 1, "c,");
+        } catch (ParseException e) {
+            message = e.getMessage();
+        }
+        assertEquals("ERROR: Cannot shift down on lower-case letter", message);
+        music = parser.edit(bar, bar + 2, "");
+        assertEquals(parse(parser.getText()), music.toString());
+        assertEquals(4, parser.getFullParses());
+
+        // even if the error is not a ParseException, e.g. a tuplet in a
+        // chord
+        input = "X:1\nK:C\nC D | E F | G A |\n";
+        parser = new IncrementalParser(input);
+        bar = input.indexOf("E F");
+        try {
+            parser.edit(bar, bar + 3, "[E (3FGA]");
+            fail("a tuplet in a chord");
+        } catch (ParseException e) {
+            // expected
+        }
+        try {
+            parser.edit(input.indexOf("C D"), input.indexOf("C D") + 1, "B");
+            fail("the text still has a tuplet in a chord");
+        } catch (ParseException e) {
+            // expected
+        }
+        assertEquals(3, parser.getFullParses());
+        bar = parser.getText().toString().indexOf("[E (3FGA]");
+        music = parser.edit(bar, bar + 9, "E F");
+        assertEquals(parse(parser.getText()), music.toString());
+        assertEquals(parse("X:1\nK:C\nB D | E F | G A |\n"), music.toString());
+    }
+
+    @Test
+    public void testCompactMusic() throws ParseException {
+        String input = "X: 1\nK: C\nV: 1\n^C [CE] | (3z_AB c2 |: d :|\n"
+                + "V: 2\n|: C, |[1 D :|[2 E/2 |]\n";
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        for (boolean direct : new boolean[] { false, true }) {
+            CompactMusic compact = CompactMusic.of(music, direct);
+            assertEquals(music.toString(), compact.asMusic().toString());
+            assertEquals(music.getTempo(), compact.asMusic().getTempo());
+        }
+
+        // the notes of a chord follow it
+        CompactMusic compact = CompactMusic.of(new Parser(new Lexer(
+                "K: C\n=c [CE] |\n").tokenize()).getMusic());
+        assertEquals(5, compact.size());
+        assertEquals(MusicalType.ACCIDENTAL, compact.getType(0));
+        assertEquals(0, compact.getNum(0)); // natural
+        assertEquals(new Pitch('C').octaveTranspose(1), compact.getPitch(1));
+        assertEquals(MusicalType.CHORD, compact.getType(2));
+        assertEquals(2, compact.getDenom(2)); // notes in the chord
+        assertEquals(2, compact.getParent(4));
+        assertEquals(1, compact.getBarCount());
+    }
+
+    @Test
+    public void testSharedPitches() throws ParseException {
+        Pitch c = Pitch.valueOf('C');
+        assertEquals(new Pitch('C'), c);
+        assertSame(c, Pitch.valueOf(0, 0, 0));
+        assertSame(c.octaveTranspose(1), Pitch.valueOf('C').octaveTranspose(1));
+        assertSame(Pitch.valueOf('D').accidentalTranspose(-1), c.transpose(2)
+                .accidentalTranspose(-1));
+        assertEquals(new Pitch('F').transpose(-2).toMidiNote(), Pitch.valueOf(
+                'E').accidentalTranspose(-1).toMidiNote());
+        assertEquals(60 - 12 * 10, c.octaveTranspose(-10).toMidiNote());
+
+        // so the notes of a piece share their pitches
+        Music music = new Parser(new Lexer("K: C\nc C c' c |\n").tokenize())
+                .getMusic();
+        List<MusicSequence> bars = music.getVoice("default").getElements();
+        List<MusicalElement> notes = ((Bar) bars.get(0)).getElements();
+        assertSame(((Note) notes.get(0)).getPitch(),
+                ((Note) notes.get(3)).getPitch());
+        assertSame(c, ((Note) notes.get(1)).getPitch());
+    }
+
+    @Test
+    public void testRational() {
+        long half = Rational.of(2, 4);
+        assertEquals(Rational.of(1, 2), half);
+        assertEquals(Rational.of(-1, 2), Rational.of(1, -2));
+        assertEquals(Rational.of(5, 6), Rational.add(half, Rational.of(1, 3)));
+        assertEquals(Rational.of(1, 3),
+                Rational.multiply(half, Rational.of(2, 3)));
+        assertTrue(Rational.compare(Rational.of(2, 3), half) > 0);
+        assertEquals(0, Rational.compare(Rational.of(3, 6), half));
+        assertEquals("1/2", Rational.toString(half));
+        try {
+            Rational.add(Rational.of(1, Integer.MAX_VALUE),
+                    Rational.of(1, Integer.MAX_VALUE - 1));
+            fail("overflow");
+        } catch (ArithmeticException e) {
+            // expected
+        }
+
+        // lengths share their instances, but keep their terms
+        assertSame(MusicalLength.valueOf(3, 2), new Tuplet(2).getScale());
+        assertSame(MusicalLength.valueOf(2, 4), MusicalLength.valueOf(1, 4)
+                .multiply(2, 1));
+        assertEquals("1/2", MusicalLength.valueOf(2, 4).toString());
+        assertEquals(MusicalLength.valueOf(3, 4), MusicalLength.valueOf(1, 2)
+                .add(MusicalLength.valueOf(1, 4)));
+    }
+
+    @Test
+    public void testCanonicalizer() throws ParseException {
+        String input = "K: C\nC D | [CE] (3ABc | C D |: [CE] (3ABc :| C D |]\n";
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        String expected = music.toString();
+        Canonicalizer canonicalizer = new Canonicalizer();
+        assertSame(music, canonicalizer.canonicalize(music));
+        assertEquals(expected, music.toString());
+        assertEquals(expected, CompactMusic.of(music).asMusic().toString());
+
+        // identical bars, in and out of the repeat, are one Bar
+        List<MusicSequence> elements = music.getVoice("default").getElements();
+        Bar first = (Bar) elements.get(0);
+        Bar second = (Bar) elements.get(1);
+        Repeat repeat = (Repeat) elements.get(3);
+        assertSame(first, elements.get(2));
+        assertSame(first, elements.get(4));
+        assertSame(second, repeat.getElements().get(0));
+        Music other = new Parser(new Lexer("K: C\nC D |\n").tokenize())
+                .getMusic();
+        Bar copy = (Bar) other.getVoice("default").getElements().get(0);
+        assertEquals(first.contentHash(), copy.contentHash());
+        assertTrue(first != copy);
+
+        // and so are identical notes, within and across bars
+        List<MusicalElement> notes = second.getElements();
+        Chord chord = (Chord) notes.get(0);
+        Tuplet tuplet = (Tuplet) notes.get(1);
+        assertSame(first.getElements().get(0), chord.getNotes().get(0));
+        assertSame(first.getElements().get(0), canonicalizer
+                .canonicalize(new Note(Pitch.valueOf('C'), MusicalLength.ONE)));
+        // C D E A B c, the chord, the tuplet and the two bars
+        assertEquals(10, canonicalizer.size());
+    }
+
+    @Test
+    public void testPrecompiled() throws ParseException, IOException {
+        String input = "X: 4\nT: Tit\u00e9\nC: me\nM: 3/4\nL: 1/4\nQ: 90\n"
+                + "K: Bb\nV: 1\n^C [CE] | (3z_AB c2 |: d :|\n"
+                + "V: 2\n|: C, |[1 D :|[2 E/2 |]\n";
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        Music plain = new Parser(new Lexer("K: C\nC |\n").tokenize())
+                .getMusic();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactMusic.of(music, true).write(out);
+        CompactMusic.of(plain).write(out);
+
+        File file = File.createTempFile("tunes", Main.PRECOMPILED);
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            out.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        List<CompactMusic> tunes = CompactMusic.map(file.getPath());
+        assertEquals(2, tunes.size());
+        Music loaded = tunes.get(0).asMusic();
+        assertEquals(music.toString(), loaded.toString());
+        assertEquals("Tit\u00e9", loaded.getTitle());
+        assertEquals("me", loaded.getComposer());
+        assertEquals("4", loaded.getIndexNumber());
+        assertEquals(music.getTempo(), loaded.getTempo());
+        assertEquals(music.getMeter(), loaded.getMeter());
+        assertEquals(music.getDefaultLength(), loaded.getDefaultLength());
+        assertEquals("Bb", loaded.getKeySignature().toString());
+        assertEquals(music.getKeySignature().getDefaultAccidentals()
+                .toString(), loaded.getKeySignature().getDefaultAccidentals()
+                .toString());
+        assertEquals(plain.toString(), tunes.get(1).asMusic().toString());
+        assertEquals("C", tunes.get(1).asMusic().getKeySignature().toString());
+
+        // a cut short file is an error
+        byte[] bytes = out.toByteArray();
+        String message = null;
+        try {
+            CompactMusic.read(ByteBuffer.wrap(bytes, 0, bytes.length / 3));
+        } catch (IOException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Precompiled tune is cut short", message);
+
+        // and so is a damaged one, e.g. with an element of no type
+        byte[] damaged = bytes.clone();
+        damaged[bytes.length - 16] = 99; // of the one element of plain
+        ByteBuffer buffer = ByteBuffer.wrap(damaged);
+        CompactMusic.read(buffer);
+        message = null;
+        try {
+            CompactMusic.read(buffer);
+        } catch (IOException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Precompiled tune is damaged: element 0 is of no type",
+                message);
+        // whichever byte is damaged, it is either read or found damaged
+        for (int i = 0; i < bytes.length; i++) {
+            for (int flip : new int[] { 0x01, 0x80, 0xff }) {
+                damaged = bytes.clone();
+                damaged[i] ^= flip;
+                buffer = ByteBuffer.wrap(damaged);
+                try {
+                    while (buffer.hasRemaining()) {
+                        CompactMusic.read(buffer).asMusic().toString();
+                    }
+                } catch (IOException e) {
+                    // found damaged
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParseCache() throws ParseException, IOException {
+        File directory = File.createTempFile("cache", "");
+        directory.delete();
+        try {
+            String input = "K: C\nM: 3/4\nC D/3 | E F |\n";
+            ParseCache cache = new ParseCache(directory, 1 << 20);
+            ParseCache.Entry parsed = cache.parse(input);
+            assertEquals(1, cache.getMisses());
+            assertEquals(parse(input), parsed.getMusic().toString());
+
+            // the second time, from the file of the first, even in another
+            // cache on the same directory
+            ParseCache shared = new ParseCache(directory, 1 << 20);
+            ParseCache.Entry cached = shared.parse(input);
+            assertEquals(0, shared.getMisses());
+            assertEquals(parse(input), cached.getMusic().toString());
+            assertEquals(parsed.getTicksPerQuarterNote(),
+                    cached.getTicksPerQuarterNote());
+            assertEquals(parsed.getErrors(), cached.getErrors());
+            assertTrue(cached.getErrors().length() > 0); // 3/4 meter
+
+            // a damaged entry is deleted and parsed again, e.g. with other
+            // ticks per quarter note
+            File entry = directory.listFiles()[0];
+            RandomAccessFile damage = new RandomAccessFile(entry, "rw");
+            try {
+                damage.seek(8);
+                damage.writeInt(parsed.getTicksPerQuarterNote() + 1);
+            } finally {
+                damage.close();
+            }
+            ParseCache repaired = new ParseCache(directory, 1 << 20);
+            cached = repaired.parse(input);
+            assertEquals(1, repaired.getMisses());
+            assertEquals(parsed.getTicksPerQuarterNote(),
+                    cached.getTicksPerQuarterNote());
+            assertEquals(parse(input), cached.getMusic().toString());
+            repaired.parse(input);
+            assertEquals(1, repaired.getMisses());
+
+            // over budget, the least recently used entry goes
+            File[] entries = directory.listFiles();
+            assertEquals(1, entries.length);
+            // not to be taken for a file of precompiled tunes
+            assertFalse(entries[0].getName().endsWith(Main.PRECOMPILED));
+            long length = entries[0].length();
+            entries[0].setLastModified(System.currentTimeMillis() - 60000);
+            ParseCache small = new ParseCache(directory, length * 3 / 2);
+            small.parse("K: C\nG |\n");
+            small.parse("K: C\nG |\n");
+            assertEquals(1, small.getMisses());
+            shared.parse(input);
+            assertEquals(1, shared.getMisses());
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testFusedAnalysis() throws ParseException {
+        String input = "K: D\nM: 2/4\nL: 1/8\nV: 1\nV: 2\nV: 1\n"
+                + "|: A B/3 (3cde :|[1 [C2E] F G2 :|[2 ^F4 |]\n"
+                + "V: 2\nz/5 F | [C2E2] c d |\n";
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        MusicalWellFormednessVisitor wf = new MusicalWellFormednessVisitor();
+        music.accept(wf);
+        OptimalTicksPerQuarterNoteVisitor ot = new OptimalTicksPerQuarterNoteVisitor();
+        FusedAnalysisVisitor fused = new FusedAnalysisVisitor();
+        music.accept(fused);
+        assertEquals(wf.getErrors(), fused.getErrors());
+        assertEquals(music.accept(ot).intValue(),
+                fused.getTicksPerQuarterNote());
+        assertTrue(fused.getErrors().length() > 0); // the chord, and beats
+    }
+
+    @Test
+    public void testProgram() throws ParseException {
+        String input = "K: G\nM: 1/4\n|: ^c F |[1 [C2E] (3CDE :|[2 F2 |]\n"
+                + "V: 2\nz/5 F |\n";
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        Program program = Program.compile(music);
+        MusicalWellFormednessVisitor wf = new MusicalWellFormednessVisitor();
+        music.accept(wf);
+        assertEquals(wf.getErrors(), program.getErrors());
+        assertEquals(
+                music.accept(new OptimalTicksPerQuarterNoteVisitor())
+                        .intValue(), program.getTicksPerQuarterNote());
+
+        // the bars of the repeat are compiled once, and jumped back to
+        String code = program.toString();
+        assertTrue(code.contains("\n2: REPEAT\n3: BAR\n"));
+        assertTrue(code.contains(": ENDING 1 "));
+        assertTrue(code.contains(": JUMP 3\n"));
+        assertEquals(code.indexOf("ACCIDENTAL"), code.lastIndexOf("ACCIDENTAL"));
+    }
+
+    @Test
+    public void testParallelTranslation() throws Exception {
+        // long enough for the bars of a voice to be translated in chunks
+        StringBuilder input = new StringBuilder("K: D\nV: 1\nV: 2\nV: 1\n");
+        for (int i = 0; i < 300; i++) {
+            input.append("|: ^F [C2E2] (3ABc |[1 G/2 z/2 :|[2 d e |\n");
+        }
+        input.append("V: 2\nC D | E F |\n");
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        FusedAnalysisVisitor fused = new FusedAnalysisVisitor();
+        music.accept(fused);
+        int ticks = fused.getTicksPerQuarterNote();
+
+        SequencePlayer serial = new SequencePlayer(120, ticks, 2);
+        music.accept(new TranslateToSequenceVisitor(serial, ticks));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            SequencePlayer parallel = new SequencePlayer(120, ticks, 2);
+            fused.translate(parallel, pool);
+            assertEquals(serial.toString(), parallel.toString());
+            // and with both voices in one track
+            serial = new SequencePlayer(120, ticks);
+            music.accept(new TranslateToSequenceVisitor(serial, ticks));
+            parallel = new SequencePlayer(120, ticks);
+            fused.translate(parallel, pool);
+            assertEquals(serial.toString(), parallel.toString());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuantization() throws Exception {
+        String input = "L: 1/4\nK: C\nC/7 C/7 C/7 C/7 C/7 C/7 C/7 D |\n";
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        OptimalTicksPerQuarterNoteVisitor exact = new OptimalTicksPerQuarterNoteVisitor(
+                28);
+        assertEquals(28, (int) music.accept(exact));
+        assertFalse(exact.isQuantized());
+        assertEquals(0, exact.getQuantizationError(), 0);
+        OptimalTicksPerQuarterNoteVisitor bounded = new OptimalTicksPerQuarterNoteVisitor(
+                4);
+        assertEquals(4, (int) music.accept(bounded));
+        assertTrue(bounded.isQuantized());
+        assertEquals(0.125, bounded.getQuantizationError(), 0);
+
+        // with exact ticks, quantizing changes nothing
+        SequencePlayer plain = new SequencePlayer(120, 28);
+        music.accept(new TranslateToSequenceVisitor(plain, 28));
+        SequencePlayer rounded = new SequencePlayer(120, 28);
+        TranslateToSequenceVisitor translation = new TranslateToSequenceVisitor(
+                rounded, 28, true);
+        music.accept(translation);
+        assertEquals(plain.toString(), rounded.toString());
+        assertEquals(0, translation.getQuantizationError(), 0);
+
+        // the notes start at the nearest tick, and D on the beat
+        final StringBuilder starts = new StringBuilder();
+        SequencePlayer player = new SequencePlayer(120, 4) {
+            @Override
+            public void addNote(int track, int note, int startTick,
+                    int numTicks) {
+                starts.append(startTick).append('+').append(numTicks)
+                        .append(' ');
+            }
+        };
+        translation = new TranslateToSequenceVisitor(player, 4, true);
+        music.accept(translation);
+        assertEquals("0+1 1+0 1+1 2+0 2+1 3+0 3+1 4+4 ", starts.toString());
+        assertTrue(translation.getQuantizationError() <= 0.125);
+    }
+
+    @Test
+    public void testTicksOverflow() throws ParseException, IOException {
+        // 641 * 6700417 is 2^32 + 1, which would wrap around to 1
+        String input = "X:1\nM:4/4\nL:1/4\nK:C\nC/641 C/6700417 |\n";
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        FusedAnalysisVisitor fused = new FusedAnalysisVisitor();
+        music.accept(fused);
+        assertEquals(Integer.MAX_VALUE, fused.getTicksPerQuarterNote());
+        assertEquals(Integer.MAX_VALUE,
+                (int) music.accept(new OptimalTicksPerQuarterNoteVisitor()));
+        assertEquals(Integer.MAX_VALUE, Program.compile(music)
+                .getTicksPerQuarterNote());
+        OptimalTicksPerQuarterNoteVisitor bounded = new OptimalTicksPerQuarterNoteVisitor(
+                10080);
+        assertEquals(10080, (int) music.accept(bounded));
+        assertTrue(bounded.isQuantized());
+
+        // and so does an entry of the cache, parsed or read
+        File directory = File.createTempFile("cache", "");
+        directory.delete();
+        try {
+            ParseCache cache = new ParseCache(directory, 1 << 20);
+            assertEquals(Integer.MAX_VALUE, cache.parse(input)
+                    .getTicksPerQuarterNote());
+            assertEquals(Integer.MAX_VALUE, cache.parse(input)
+                    .getTicksPerQuarterNote());
+            assertEquals(1, cache.getMisses());
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static String parse(CharSequence input) throws ParseException {
+        return new Parser(new Lexer(input).tokenize()).getMusic().toString();
+    }
 }
@@ -0,0 +1,122 @@
+package player.test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import music.ast.Music;
+import music.program.Program;
+import music.visitor.MusicalWellFormednessVisitor;
+import music.visitor.OptimalTicksPerQuarterNoteVisitor;
+import music.visitor.TranslateToSequenceVisitor;
+import player.Lexer;
+import player.Parser;
+import player.Parser.ParseException;
+import sound.SequencePlayer;
+
+/**
+ * Measures how long the visitors take over a piece, against compiling it
+ * into a Program and running the same passes over that. Not a JUnit test, run
+ * it with the abc file to measure, e.g.
+ *
+ * java player.test.ProgramBenchmark sample_abc/invention.abc
+ *
+ * The translations add their notes to a SequencePlayer that drops them, so
+ * that the MIDI track is not what is measured; they are left out if there is
+ * no MIDI sequencer.
+ *
+ */
+public class ProgramBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int RUNS = 20000;
+
+    private static int checksum; // so that no pass can be left out
+
+    private static class DroppingPlayer extends SequencePlayer {
+        DroppingPlayer(int ticksPerQuarterNote) throws Exception {
+            super(120, ticksPerQuarterNote);
+        }
+
+        @Override
+        public void addNote(int note, int startTick, int numTicks) {
+            checksum += note + startTick + numTicks;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+        String file = (args.length > 0) ? args[0] : "sample_abc/invention.abc";
+        String input = new String(Files.readAllBytes(Paths.get(file)),
+                Charset.forName("UTF-8"));
+        Music music = new Parser(new Lexer(input).tokenize()).getMusic();
+        Program program = Program.compile(music);
+        int ticks = program.getTicksPerQuarterNote();
+        SequencePlayer player;
+        try {
+            player = new DroppingPlayer(ticks);
+        } catch (Exception e) {
+            player = null;
+        }
+
+        System.out.println(file + ": " + program.size() + " ints of code");
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1; // after the warmup
+            int runs = report ? RUNS : WARMUP;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                MusicalWellFormednessVisitor wf = new MusicalWellFormednessVisitor();
+                music.accept(wf);
+                checksum += wf.getErrors().length();
+                checksum += music.accept(new OptimalTicksPerQuarterNoteVisitor());
+            }
+            long visitors = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                checksum += Program.compile(music).size();
+            }
+            long compile = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                checksum += program.getErrors().length();
+                checksum += program.getTicksPerQuarterNote();
+            }
+            long passes = System.nanoTime() - start;
+
+            long translateVisitor = 0;
+            long translateProgram = 0;
+            if (player != null) {
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    music.accept(new TranslateToSequenceVisitor(player, ticks));
+                }
+                translateVisitor = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    program.translate(player, ticks);
+                }
+                translateProgram = System.nanoTime() - start;
+            }
+
+            if (report) {
+                System.out.println("check and ticks, visitors: "
+                        + visitors / runs / 1000 + " us");
+                System.out.println("check and ticks, program: "
+                        + passes / runs / 1000 + " us, after compiling in "
+                        + compile / runs / 1000 + " us");
+                if (player != null) {
+                    System.out.println("translate, visitor: "
+                            + translateVisitor / runs / 1000 + " us");
+                    System.out.println("translate, program: "
+                            + translateProgram / runs / 1000 + " us");
+                } else {
+                    System.out.println("translate: no MIDI sequencer");
+                }
+            }
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+}
@@ -12,11 +12,17 @@ package sound;
  *   new Pitch('F').transpose(-2) makes E-flat.
  *   new Pitch('C').transpose(OCTAVE) makes high C.
  *   new Pitch('C').transpose(-OCTAVE) makes low C.
+ *
+ * Pitch.valueOf('C') returns the shared instance of middle C. The factory
+ * and the transpose methods return shared instances for all pitches within
+ * MAX_ACCIDENTAL sharps or flats and MAX_OCTAVE octaves of the middle
+ * octave, so those can be compared with ==.
  */
 public class Pitch {
     private final int value;
     private final int accidental;
     private final int octave;
+    private final int midiNote;
    
     // Rep invariant: value in {0, 2, 4, 5, 7, 9, 11}
     // Abstraction function AF(value, accidental, octave): 
@@ -43,6 +49,7 @@ public class Pitch {
         this.value = value;
         this.accidental = accidental;
         this.octave = octave;
+        this.midiNote = value + accidental + (OCTAVE * octave) + 60;
         checkRep();
     }
 
@@ -60,6 +67,7 @@ public class Pitch {
     	this.value = scale[index];
     	this.accidental = 0;
     	this.octave = 0;
+    	this.midiNote = value + 60;
     	checkRep();
     }
     
@@ -67,6 +75,73 @@ public class Pitch {
      * Number of pitches in an octave.
      */
     public static final int OCTAVE = 12;
+
+    /**
+     * Largest number of sharps or flats, and of octaves up or down, of the
+     * shared instances.
+     */
+    public static final int MAX_ACCIDENTAL = 4;
+    public static final int MAX_OCTAVE = 8;
+
+    // The shared instances, by octave, accidental and value; null where
+    // the value is not that of a natural note
+    private static final int ACCIDENTALS = 2 * MAX_ACCIDENTAL + 1;
+    private static final Pitch[] TABLE = new Pitch[(2 * MAX_OCTAVE + 1)
+            * ACCIDENTALS * OCTAVE];
+
+    static {
+        for (int o = -MAX_OCTAVE; o <= MAX_OCTAVE; o++) {
+            for (int a = -MAX_ACCIDENTAL; a <= MAX_ACCIDENTAL; a++) {
+                for (int v = 0; v < OCTAVE; v++) {
+                    if (isValid(v)) {
+                        TABLE[index(v, a, o)] = new Pitch(v, a, o);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int index(int value, int accidental, int octave) {
+        return ((octave + MAX_OCTAVE) * ACCIDENTALS + accidental
+                + MAX_ACCIDENTAL)
+                * OCTAVE + value;
+    }
+
+    /**
+     * @return the shared instance of the pitch with the given value,
+     * accidental and octave, or a new Pitch if there is none
+     */
+    private static Pitch lookup(int value, int accidental, int octave) {
+        if (accidental < -MAX_ACCIDENTAL || accidental > MAX_ACCIDENTAL
+                || octave < -MAX_OCTAVE || octave > MAX_OCTAVE) {
+            return new Pitch(value, accidental, octave);
+        }
+        return TABLE[index(value, accidental, octave)];
+    }
+
+    /**
+     * @requires c in {'A',...,'G'}
+     * @returns the shared instance of the Pitch named c in the middle octave
+     * of the piano keyboard, which equals new Pitch(c)
+     */
+    public static Pitch valueOf(char c) {
+    	int index = c - 'A';
+    	if (index < 0 || index >= scale.length)
+    		throw new IllegalArgumentException(c + " must be in the range A-G");
+    	return lookup(scale[index], 0, 0);
+    }
+
+    /**
+     * @returns the Pitch of the natural note with the given value (see
+     * getValue()), with the given sharps (if positive) or flats (if
+     * negative), the given number of octaves above the middle octave; a
+     * shared instance if it is in range
+     */
+    public static Pitch valueOf(int value, int accidental, int octave) {
+    	if (!isValid(value))
+    		throw new IllegalArgumentException(value + " is not a natural note");
+    	return lookup(value, accidental, octave);
+    }
     
     /**
      * @return pitch made by adding semitonesUp sharps to this pitch,
@@ -75,7 +150,7 @@ public class Pitch {
      * semitone is E flat; E transposed by 1 semitone is E sharp.
      */
     public Pitch accidentalTranspose(int semitonesUp) {
-        return new Pitch(value, accidental + semitonesUp, octave);
+        return lookup(value, accidental + semitonesUp, octave);
     }    
 
     /**
@@ -84,7 +159,7 @@ public class Pitch {
      * E'; transposing E down by 1 octave produces E, .
      */
     public Pitch octaveTranspose(int octavesUp) {
-	return new Pitch(value, accidental, octave + octavesUp);
+	return lookup(value, accidental, octave + octavesUp);
     }
 
     /**
@@ -123,7 +198,7 @@ public class Pitch {
 	    }
 	}
 
-	return new Pitch(newValue, newAccidental, newOctave);
+	return lookup(newValue, newAccidental, newOctave);
     }
 
     /**
@@ -139,7 +214,7 @@ public class Pitch {
      * @return the midi note of this pitch
      */
     public int toMidiNote() {
-    	return this.value + this.accidental + (OCTAVE * this.octave) + 60;
+    	return this.midiNote;
     }
     
     
@@ -152,6 +227,8 @@ public class Pitch {
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
         if (obj == null)
             return false;
         if (obj.getClass() != this.getClass())
@@ -167,6 +244,22 @@ public class Pitch {
         return value + accidental;
     }
     
+    /**
+     * @return the number of semitones of the natural note of this pitch above
+     * C, one of 0, 2, 4, 5, 7, 9, 11
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return the number of sharps (if positive) or flats (if negative) of
+     * this pitch
+     */
+    public int getAccidental() {
+        return accidental;
+    }
+
     public int getOctave() {
         return octave;
     }
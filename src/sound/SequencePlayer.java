@@ -13,12 +13,14 @@ import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
 
 /**
- * Schedules and plays a sequence of notes at given time steps (or "ticks")
+ * Schedules and plays a sequence of notes at given time steps (or "ticks"), in
+ * one or more tracks that are played together. Notes can be added to
+ * different tracks from different threads at the same time.
  */
 public class SequencePlayer {
 
     private Sequencer sequencer;
-    private Track track;
+    private Track[] tracks;
     private int beatsPerMinute;
 
     private static int DEFAULT_CHANNEL = 0;    // midi channel - for our purpose always 0
@@ -26,7 +28,7 @@ public class SequencePlayer {
 
     private void checkRep() {
         assert sequencer != null : "sequencer should be non-null";
-        assert track != null : "track should be non-null";
+        assert tracks != null && tracks.length > 0 : "should have a track";
         assert beatsPerMinute >= 0 : "should be positive number of beats per minute";
     }
 
@@ -41,6 +43,27 @@ public class SequencePlayer {
      */
     public SequencePlayer(int beatsPerMinute, int ticksPerQuarterNote)
             throws MidiUnavailableException, InvalidMidiDataException {
+        this(beatsPerMinute, ticksPerQuarterNote, 1);
+    }
+
+    /**
+     * @param beatsPerMinute
+     *            : the number of beats per minute, where each beat is equal to
+     *            a quarter note in duration
+     * @param ticksPerQuarterNote
+     *            : the number of ticks per quarter note
+     * @param trackCount
+     *            : the number of tracks, e.g. one for every voice, at least 1
+     * @throws MidiUnavailableException
+     * @throws InvalidMidiDataException
+     */
+    public SequencePlayer(int beatsPerMinute, int ticksPerQuarterNote,
+            int trackCount) throws MidiUnavailableException,
+            InvalidMidiDataException {
+        if (trackCount < 1) {
+            throw new IllegalArgumentException("Cannot play " + trackCount
+                    + " tracks");
+        }
         this.sequencer = MidiSystem.getSequencer();
 
         // Create a sequence object with with tempo-based timing, where
@@ -48,8 +71,11 @@ public class SequencePlayer {
         Sequence sequence = new Sequence(Sequence.PPQ, ticksPerQuarterNote);
         this.beatsPerMinute = beatsPerMinute;
 
-        // Create an empty track. Notes will be added to this track.
-        this.track = sequence.createTrack();
+        // Create empty tracks. Notes will be added to these tracks.
+        this.tracks = new Track[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            this.tracks[i] = sequence.createTrack();
+        }
 
         sequencer.setSequence(sequence);
 
@@ -63,11 +89,18 @@ public class SequencePlayer {
      * @pre eventType is a valid MidiMessage type in ShortMessage && note is a
      *      valid pitch value && tick => 0
      */
-    private void addMidiEvent(int eventType, int note, int tick) throws InvalidMidiDataException {
+    private void addMidiEvent(Track track, int eventType, int note, int tick) throws InvalidMidiDataException {
         ShortMessage msg = new ShortMessage();
         msg.setMessage(eventType, DEFAULT_CHANNEL, note, DEFAULT_VELOCITY);
         MidiEvent event = new MidiEvent(msg, tick);
-        this.track.add(event);
+        track.add(event);
+    }
+
+    /**
+     * @return the number of tracks
+     */
+    public int getTrackCount() {
+        return tracks.length;
     }
 
     /**
@@ -82,11 +115,24 @@ public class SequencePlayer {
      *       duration of numTicks
      */
     public void addNote(int note, int startTick, int numTicks) {
+        addNote(0, note, startTick, numTicks);
+    }
+
+    /**
+     * Like addNote(note, startTick, numTicks), but in the given track. A track
+     * keeps its events in order, and adding an event before the last one
+     * takes time, so notes are best added to each track in order.
+     *
+     * @param track
+     *            : the index of the track, from 0 to getTrackCount() - 1
+     */
+    public void addNote(int track, int note, int startTick, int numTicks) {
         try {
             // schedule two events in the track, one for starting a note and
             // the other for ending the note.
-            addMidiEvent(ShortMessage.NOTE_ON, note, startTick);
-            addMidiEvent(ShortMessage.NOTE_OFF, note, startTick + numTicks);
+            addMidiEvent(tracks[track], ShortMessage.NOTE_ON, note, startTick);
+            addMidiEvent(tracks[track], ShortMessage.NOTE_OFF, note,
+                    startTick + numTicks);
         } catch (InvalidMidiDataException e) {
             String msg = MessageFormat.format("Cannot add note with the pitch {0} at tick {1} " +
             		"for duration of {2}", note, startTick, numTicks);
@@ -95,7 +141,7 @@ public class SequencePlayer {
     }
 
     /**
-     * @post the sequencer is opened to begin playing its track
+     * @post the sequencer is opened to begin playing its tracks
      */
     public void play() throws MidiUnavailableException {
         sequencer.open();
@@ -117,35 +163,37 @@ public class SequencePlayer {
     /**
      * @post returns a string that displays the entire track information as a
      *       sequence of MIDI events, where each event is either turning on or
-     *       off a note at a certain tick
+     *       off a note at a certain tick, one track after the other
      */
     @Override
     public String toString() {
         String trackInfo = "";
         
-        for (int i = 0; i < track.size(); i++) {
-            MidiEvent e = track.get(i);
-            MidiMessage msg = e.getMessage();
-            String msgString = "";
-
-            if (msg instanceof javax.sound.midi.ShortMessage) {
-                ShortMessage smg = ((ShortMessage) msg);
-                int command = smg.getCommand();
-                String commandType = "UnknownCommand";
-
-                // determine the type of the command in this message
-                if (command == ShortMessage.NOTE_OFF) {
-                    commandType = "NOTE_OFF";
-                } else if (command == ShortMessage.NOTE_ON) {
-                    commandType = "NOTE_ON ";
+        for (Track track : tracks) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent e = track.get(i);
+                MidiMessage msg = e.getMessage();
+                String msgString = "";
+
+                if (msg instanceof javax.sound.midi.ShortMessage) {
+                    ShortMessage smg = ((ShortMessage) msg);
+                    int command = smg.getCommand();
+                    String commandType = "UnknownCommand";
+
+                    // determine the type of the command in this message
+                    if (command == ShortMessage.NOTE_OFF) {
+                        commandType = "NOTE_OFF";
+                    } else if (command == ShortMessage.NOTE_ON) {
+                        commandType = "NOTE_ON ";
+                    }
+
+                    msgString = "Event: " + commandType + " Pitch: " + smg.getData1() + " ";
+                } else {
+                    msgString = "***** End of track *****  ";
                 }
 
-                msgString = "Event: " + commandType + " Pitch: " + smg.getData1() + " ";
-            } else {
-                msgString = "***** End of track *****  ";
+                trackInfo = trackInfo + msgString + " Tick: " + e.getTick() + "\n";
             }
-
-            trackInfo = trackInfo + msgString + " Tick: " + e.getTick() + "\n";
         }
 
         return trackInfo;
@@ -3,6 +3,8 @@ package sound;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiUnavailableException;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
 public class SequencePlayerTest {
@@ -125,4 +127,20 @@ public class SequencePlayerTest {
 
     }
 
+    @Test
+    public void tracksTest() throws MidiUnavailableException, InvalidMidiDataException {
+        SequencePlayer sp = new SequencePlayer(120, 2, 2);
+        assertEquals(2, sp.getTrackCount());
+        // each track is in order by itself, and shown after the one before
+        sp.addNote(1, new Pitch('E').toMidiNote(), 0, 2);
+        sp.addNote(new Pitch('C').toMidiNote(), 0, 1);
+        sp.addNote(0, new Pitch('D').toMidiNote(), 1, 1);
+        String c = "Event: NOTE_ON  Pitch: 60  Tick: 0\n";
+        String e = "Event: NOTE_ON  Pitch: 64  Tick: 0\n";
+        String[] events = sp.toString().split("\n");
+        assertEquals(8, events.length); // three notes, and two ends of track
+        assertEquals(c, events[0] + "\n");
+        assertEquals(e, events[5] + "\n");
+    }
+
 }